@@ -17,17 +17,34 @@
 package org.whispersystems.whisperpush;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.TextSecureAccountManager;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
-import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 import org.whispersystems.whisperpush.api.MessagingBridge;
+import org.whispersystems.whisperpush.database.CanonicalAddressBenchmark;
+import org.whispersystems.whisperpush.database.DatabaseFactory;
 import org.whispersystems.whisperpush.directory.Directory;
 import org.whispersystems.whisperpush.directory.NotInDirectoryException;
 import org.whispersystems.whisperpush.gcm.GcmHelper;
+import org.whispersystems.whisperpush.service.ContactsChangeObserver;
+import org.whispersystems.whisperpush.service.DirectoryRefreshService;
+import org.whispersystems.whisperpush.service.MessagePipeManager;
 import org.whispersystems.whisperpush.service.WhisperPushMessageSender;
+import org.whispersystems.whisperpush.util.PhoneNumberCache;
 import org.whispersystems.whisperpush.util.WhisperPreferences;
 import org.whispersystems.whisperpush.util.WhisperServiceFactory;
 
@@ -58,6 +75,7 @@ public class WhisperPush {
     private final WhisperPreferences mPreferences;
     private final Directory mContactDirectory;
     private final ConnectivityManager mConnectivityManager;
+    private final ConcurrentMap<String, FutureTask<Boolean>> mPendingLookups = new ConcurrentHashMap<>();
     private volatile WhisperPushMessageSender mMessageSender;
 
     private static boolean visible = false;
@@ -117,7 +135,7 @@ public class WhisperPush {
     }
 
     public String formatNumber(String number) throws InvalidNumberException {
-        return PhoneNumberFormatter.formatNumber(number, getLocalNumber());
+        return PhoneNumberCache.getInstance().formatNumber(number, getLocalNumber());
     }
 
     public boolean isSecureMessagingActive() {
@@ -146,7 +164,7 @@ public class WhisperPush {
         }
         String e164number;
         try {
-            e164number = PhoneNumberFormatter.formatNumber(number, localNumber);
+            e164number = PhoneNumberCache.getInstance().formatNumber(number, localNumber);
         } catch (InvalidNumberException e) {
             Log.w(TAG, e);
             return false;
@@ -154,7 +172,59 @@ public class WhisperPush {
         try {
             return mContactDirectory.isActiveNumber(e164number);
         } catch (NotInDirectoryException e) {
-            if (allowAskServer) {
+            if (allowAskServer && !mContactDirectory.isKnownNotRegistered(e164number)) {
+                return lookupContact(e164number);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Asks the server about every number which is neither in the directory nor known to be
+     * unregistered, using one request for all of them. Meant to run ahead of a fan-out, so
+     * the per-recipient {@link #isRecipientSupportsSecureMessaging} checks don't each go
+     * to the network.
+     */
+    public void discoverRecipients(Collection<String> e164numbers) {
+        if (isRunningOnMainThread()) {
+            throw new IllegalStateException("discoverRecipients() called on main thread.");
+        }
+        Set<String> unknownNumbers = new HashSet<>();
+        for (String e164number : e164numbers) {
+            try {
+                mContactDirectory.isActiveNumber(e164number);
+            } catch (NotInDirectoryException e) {
+                if (!mContactDirectory.isKnownNotRegistered(e164number)) {
+                    unknownNumbers.add(e164number);
+                }
+            }
+        }
+        if (unknownNumbers.size() < 2) {
+            // a single number is better served by the coalesced lookup
+            return;
+        }
+        try {
+            List<ContactTokenDetails> activeTokens = getTextSecureAccountManager().getContacts(unknownNumbers);
+            for (ContactTokenDetails activeToken : activeTokens) {
+                unknownNumbers.remove(activeToken.getNumber());
+            }
+            mContactDirectory.setNumbers(activeTokens, Collections.<String>emptySet());
+            for (String e164number : unknownNumbers) {
+                mContactDirectory.setNotRegistered(e164number);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't discover recipients", e);
+        }
+    }
+
+    /**
+     * Asks the server about a single number. Concurrent lookups of the same number
+     * share one request.
+     */
+    private boolean lookupContact(final String e164number) {
+        FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
                 TextSecureAccountManager accountManager = getTextSecureAccountManager();
                 try {
                     Optional<ContactTokenDetails> contactDetails = accountManager.getContact(e164number);
@@ -162,10 +232,31 @@ public class WhisperPush {
                         mContactDirectory.setNumber(contactDetails.get(), true);
                         return true;
                     }
+                    mContactDirectory.setNotRegistered(e164number);
                 } catch (IOException ex) {
                     Log.w(TAG, "Can't get contact token details", ex);
                 }
+                return false;
+            }
+        });
+
+        FutureTask<Boolean> running = mPendingLookups.putIfAbsent(e164number, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                mPendingLookups.remove(e164number, task);
             }
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
     }
@@ -178,6 +269,23 @@ public class WhisperPush {
             //It has been a week, reregister
             launchGcmRegistration(mContext);
         }
+
+        if (isSecureMessagingActive()) {
+            warmUpCaches();
+            ContactsChangeObserver.register(mContext);
+        }
+    }
+
+    private void warmUpCaches() {
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                // first, it's what isRecipientSupportsSecureMessaging() needs
+                getContactDirectory().warmUp();
+                DatabaseFactory.getAddressDatabase(mContext).warmUp();
+                return null;
+            }
+        }.execute();
     }
 
     private void launchGcmRegistration(final Context context) {
@@ -206,6 +314,33 @@ public class WhisperPush {
         }.execute();
     }
 
+    /**
+     * Lets the host app tell whether it is in the foreground, so that messages can be
+     * received through a persistent connection while it is, when that is enabled.
+     */
+    public void setAppForeground(boolean foreground) {
+        MessagePipeManager.getInstance(mContext).setForeground(foreground);
+    }
+
+    /**
+     * Diagnostics for the host app to include in a dump() of one of its long-lived
+     * components; the library's own services only run while they have work.
+     */
+    public void dump(PrintWriter writer) {
+        DirectoryRefreshService.dump(mContext, writer);
+    }
+
+    /**
+     * Like {@link #dump(PrintWriter)}; with "benchmark-addresses" among {@code args}, also
+     * times canonical address lookups on a scratch table, see {@link CanonicalAddressBenchmark}.
+     */
+    public void dump(PrintWriter writer, String[] args) {
+        dump(writer);
+        if (args != null && Arrays.asList(args).contains("benchmark-addresses")) {
+            CanonicalAddressBenchmark.run(writer);
+        }
+    }
+
     @Deprecated
     public static void activityResumed() {
         visible = true;
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.api;
+
+import java.util.List;
+
+/**
+ * A {@link MessagingBridge} which can store many incoming text messages at once.
+ * Bridges implementing it get every text message of a fetched batch in one call, so
+ * they can insert them in a single transaction and update notifications once.
+ * Plain bridges keep getting {@link MessagingBridge#storeIncomingTextMessage} per message.
+ */
+public interface BatchMessagingBridge extends MessagingBridge {
+
+    /**
+     * @param messages in the order they were received; messages of one sender are
+     *                 always in the order that sender sent them
+     */
+    void storeIncomingTextMessages(List<IncomingTextMessage> messages);
+
+}
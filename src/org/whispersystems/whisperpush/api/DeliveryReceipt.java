@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.api;
+
+/**
+ * Confirms that the message sent to {@code destination} at {@code timestamp}
+ * has been delivered.
+ */
+public class DeliveryReceipt {
+
+    private final String mDestination;
+    private final long mTimestamp;
+
+    public DeliveryReceipt(String destination, long timestamp) {
+        mDestination = destination;
+        mTimestamp = timestamp;
+    }
+
+    public String getDestination() {
+        return mDestination;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+}
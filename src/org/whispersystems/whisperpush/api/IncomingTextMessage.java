@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.api;
+
+/**
+ * A decrypted incoming text message, as handed to
+ * {@link BatchMessagingBridge#storeIncomingTextMessages}.
+ */
+public class IncomingTextMessage {
+
+    private final String mSender;
+    private final String mMessage;
+    private final long mSentAt;
+    private final boolean mRead;
+
+    public IncomingTextMessage(String sender, String message, long sentAt, boolean read) {
+        mSender = sender;
+        mMessage = message;
+        mSentAt = sentAt;
+        mRead = read;
+    }
+
+    public String getSender() {
+        return mSender;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    public long getSentAt() {
+        return mSentAt;
+    }
+
+    public boolean isRead() {
+        return mRead;
+    }
+}
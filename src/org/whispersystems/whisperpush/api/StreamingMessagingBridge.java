@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.api;
+
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link MessagingBridge} which can take attachments as a stream. Attachments are
+ * decrypted while the stream is read, so a bridge implementing this can copy them
+ * into its own storage with constant memory instead of getting them as one array
+ * through {@link MessagingBridge#persistPart(byte[], byte[], long)}.
+ */
+public interface StreamingMessagingBridge extends MessagingBridge {
+
+    /**
+     * @param data the plaintext of the attachment; closed by the caller
+     * @return the uri of the stored part, or null if it couldn't be stored
+     */
+    Uri persistPart(byte[] contentType, InputStream data, long threadId) throws IOException;
+
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.attachments;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
+import org.whispersystems.textsecure.api.push.TrustStore;
+import org.whispersystems.textsecure.internal.util.Base64;
+import org.whispersystems.textsecure.internal.util.Util;
+import org.whispersystems.whisperpush.Release;
+import org.whispersystems.whisperpush.util.WhisperPreferences;
+import org.whispersystems.whisperpush.util.WhisperPushTrustStore;
+
+import android.content.Context;
+
+/**
+ * Fetches encrypted attachments the way the library does, asking the push server for
+ * the attachment's location and then downloading it from there, but into a file that
+ * survives a failed attempt: a retry asks for the remaining bytes only, with an HTTP
+ * range request.
+ */
+class AttachmentDownloader {
+
+    private static final String ATTACHMENT_PATH = "/v1/attachments/%d";
+    private static final int    TIMEOUT         = 30 * 1000;
+
+    private final Context context;
+
+    private SSLSocketFactory socketFactory;
+
+    AttachmentDownloader(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Appends the part of the attachment {@code destination} doesn't hold yet. Whatever
+     * has been written stays in place when this fails, so the next call resumes there.
+     */
+    void download(TextSecureAttachmentPointer pointer, File destination) throws IOException {
+        URL               location   = getLocation(pointer);
+        long              offset     = destination.length();
+        HttpURLConnection connection = (HttpURLConnection) location.openConnection();
+
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+
+            int     code = connection.getResponseCode();
+            boolean append;
+
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String range = connection.getHeaderField("Content-Range");
+                if (range == null || !range.startsWith("bytes " + offset + "-")) {
+                    destination.delete();
+                    throw new IOException("Unexpected range: " + range);
+                }
+                append = true;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // the server ignored the range, start over
+                append = false;
+            } else if (code == 416 && offset > 0) {
+                // nothing left after offset; the MAC check tells whether it's really complete
+                return;
+            } else {
+                throw new IOException("Bad response: " + code);
+            }
+
+            InputStream  in  = connection.getInputStream();
+            OutputStream out = new FileOutputStream(destination, append);
+            try {
+                Util.copy(in, out);
+            } finally {
+                out.close();
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private URL getLocation(TextSecureAttachmentPointer pointer) throws IOException {
+        String path = String.format(ATTACHMENT_PATH, pointer.getId());
+        if (pointer.getRelay().isPresent()) {
+            path += "?relay=" + pointer.getRelay().get();
+        }
+
+        HttpsURLConnection connection = (HttpsURLConnection) new URL(Release.PUSH_URL + path).openConnection();
+
+        try {
+            connection.setSSLSocketFactory(getSocketFactory());
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestProperty("Authorization", getAuthorizationHeader());
+
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Bad response: " + code);
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            Util.copy(connection.getInputStream(), body);
+
+            return new URL(new JSONObject(body.toString("UTF-8")).getString("location"));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private String getAuthorizationHeader() {
+        String credentials = WhisperPreferences.getLocalNumber(context) + ":" +
+                             WhisperPreferences.getPushServerPassword(context);
+        try {
+            return "Basic " + Base64.encodeBytes(credentials.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private synchronized SSLSocketFactory getSocketFactory() throws IOException {
+        if (socketFactory == null) {
+            try {
+                TrustStore  trustStore = new WhisperPushTrustStore(context);
+                KeyStore    keyStore   = KeyStore.getInstance("BKS");
+                InputStream keyStream  = trustStore.getKeyStoreInputStream();
+
+                try {
+                    keyStore.load(keyStream, trustStore.getKeyStorePassword().toCharArray());
+                } finally {
+                    keyStream.close();
+                }
+
+                TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("X509");
+                trustManagerFactory.init(keyStore);
+
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+
+                socketFactory = sslContext.getSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+        return socketFactory;
+    }
+}
@@ -18,15 +18,23 @@ package org.whispersystems.whisperpush.attachments;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.whispersystems.libaxolotl.InvalidMessageException;
-import org.whispersystems.textsecure.api.TextSecureMessageReceiver;
+import org.whispersystems.textsecure.api.crypto.AttachmentCipherInputStream;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
 import org.whispersystems.textsecure.internal.util.Util;
 
 import android.content.Context;
+import android.util.Log;
 
 import com.google.android.mms.ContentType;
 
@@ -46,10 +54,27 @@ public class AttachmentManager {
         return instance;
     }
 
+    private static final String TAG = AttachmentManager.class.getSimpleName();
+
+    // all attachments are fetched from the same host, so this bounds both per host and overall
+    private static final int MAX_CONCURRENT_DOWNLOADS = 3;
+
+    private static final String PARTIAL_SUFFIX     = ".part";
+    private static final int    MAX_ATTEMPTS       = 3;
+    private static final long   RETRY_BACKOFF      = 1000;
+    private static final long   STALE_DOWNLOAD_AGE = 7 * 24 * 60 * 60 * 1000L;
+
     private final Context context;
+    private final AttachmentDownloader downloader;
+    private final ThreadPoolExecutor downloadExecutor;
 
     private AttachmentManager(Context context) {
         this.context = context;
+        this.downloader = new AttachmentDownloader(context);
+        this.downloadExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_DOWNLOADS, MAX_CONCURRENT_DOWNLOADS,
+                                                       30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.downloadExecutor.allowCoreThreadTimeOut(true);
+        deleteStaleDownloads();
     }
 
     public String store(InputStream attachment) throws IOException {
@@ -64,12 +89,95 @@ public class AttachmentManager {
         return stored.getName();
     }
 
-    public InputStream store(TextSecureAttachmentPointer pointer, TextSecureMessageReceiver receiver) throws IOException, InvalidMessageException {
+    /**
+     * Downloads the attachment to a file named after its id and returns a stream which
+     * decrypts it while being read. The file is deleted when the stream is closed.
+     *
+     * Failed downloads are retried a few times with backoff, each retry resuming where
+     * the last one stopped. A download abandoned altogether, say because the process
+     * died, is resumed as well when the message is received again.
+     */
+    public InputStream store(TextSecureAttachmentPointer pointer) throws IOException, InvalidMessageException {
         File attachmentDirectory = new File(context.getFilesDir(), "attachments");
         attachmentDirectory.mkdirs();
 
-        File stored = File.createTempFile("attachment", ".store", attachmentDirectory);
-        return receiver.retrieveAttachment(pointer, stored);
+        final File partial = getDownloadFile(pointer.getId());
+        download(pointer, partial);
+
+        try {
+            return new FilterInputStream(new AttachmentCipherInputStream(partial, pointer.getKey())) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        partial.delete();
+                    }
+                }
+            };
+        } catch (IOException | InvalidMessageException | RuntimeException e) {
+            // a bad MAC may as well come from a resumed download gone wrong, start over next time
+            partial.delete();
+            throw e;
+        }
+    }
+
+    private void download(TextSecureAttachmentPointer pointer, File partial) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long before = partial.length();
+            try {
+                downloader.download(pointer, partial);
+                return;
+            } catch (IOException e) {
+                if (partial.length() > before) {
+                    // made progress, so the connection isn't hopeless
+                    attempt = 1;
+                } else if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Log.w(TAG, "Download of attachment " + pointer.getId() + " failed at " +
+                           partial.length() + " bytes, attempt " + attempt, e);
+                try {
+                    Thread.sleep(RETRY_BACKOFF << (attempt - 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while retrying download");
+                }
+            }
+        }
+    }
+
+    private File getDownloadFile(long attachmentId) {
+        return new File(new File(context.getFilesDir(), "attachments"), "download-" + attachmentId + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Drops downloads left behind by messages which were never stored.
+     */
+    private void deleteStaleDownloads() {
+        File[] files = new File(context.getFilesDir(), "attachments").listFiles();
+        if (files == null) {
+            return;
+        }
+        long expired = System.currentTimeMillis() - STALE_DOWNLOAD_AGE;
+        for (File file : files) {
+            if (file.getName().startsWith("download-") && file.lastModified() < expired) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #store(TextSecureAttachmentPointer)}, but
+     * downloads on a pool shared by all messages, so attachments are fetched in parallel.
+     */
+    public Future<InputStream> storeAsync(final TextSecureAttachmentPointer pointer) {
+        return downloadExecutor.submit(new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws Exception {
+                return store(pointer);
+            }
+        });
     }
 
     public File get(String token) {
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.database;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Times canonical address lookups on a scratch in-memory table of {@link #ADDRESSES}
+ * addresses: the backfill of the normalized column, lookups through its index, and
+ * the {@code PHONE_NUMBERS_EQUAL} scan they replaced. Nothing touches the real database.
+ */
+public class CanonicalAddressBenchmark {
+
+    private static final int    ADDRESSES    = 10000;
+    private static final int    LOOKUPS      = 1000;
+    private static final String LOCAL_NUMBER = "+14155550100";
+
+    private static final String SCAN_SELECTION = "PHONE_NUMBERS_EQUAL(" +
+            CanonicalAddressDatabase.NUMBER_COLUMN + ", ?)";
+
+    public static void run(PrintWriter writer) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            String[] numbers = new String[ADDRESSES];
+            for (int i = 0; i < ADDRESSES; i++) {
+                // the national format the host app typically hands in
+                numbers[i] = String.format("(415) 555-%04d", i);
+            }
+
+            CanonicalAddressDatabase.onCreate(db);
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues(1);
+                for (String number : numbers) {
+                    values.put(CanonicalAddressDatabase.NUMBER_COLUMN, number);
+                    db.insert(CanonicalAddressDatabase.TABLE_NAME, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                CanonicalAddressDatabase.normalizeNumbers(db, LOCAL_NUMBER);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long backfill = SystemClock.elapsedRealtime() - start;
+
+            Random   random     = new Random(42);
+            String[] lookups    = new String[LOOKUPS];
+            String[] normalized = new String[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                lookups[i]    = numbers[random.nextInt(ADDRESSES)];
+                normalized[i] = CanonicalAddressDatabase.normalizeNumber(lookups[i], LOCAL_NUMBER);
+            }
+
+            start = SystemClock.elapsedRealtime();
+            for (String number : normalized) {
+                CanonicalAddressDatabase.queryCanonicalAddress(db, CanonicalAddressDatabase.SELECTION, number);
+            }
+            long indexed = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            for (String number : lookups) {
+                CanonicalAddressDatabase.queryCanonicalAddress(db, SCAN_SELECTION, number);
+            }
+            long scanned = SystemClock.elapsedRealtime() - start;
+
+            writer.println("Canonical addresses: " + ADDRESSES + " rows, " + LOOKUPS + " lookups");
+            writer.println("  backfill:            " + backfill + "ms");
+            writer.println("  normalized index:    " + indexed + "ms");
+            writer.println("  PHONE_NUMBERS_EQUAL: " + scanned + "ms");
+        } finally {
+            db.close();
+        }
+    }
+
+}
@@ -21,86 +21,348 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
 
-import java.util.Collections;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+import org.whispersystems.whisperpush.util.BoundedConcurrentCache;
+import org.whispersystems.whisperpush.util.PhoneNumberCache;
+import org.whispersystems.whisperpush.util.WhisperPreferences;
+
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 public class CanonicalAddressDatabase {
 
-    private static final String TABLE_NAME      = "canonical_addresses";
-    private static final String ID_COLUMN       = "_id";
-    private static final String NUMBER_COLUMN   = "number";
+    private static final String TAG = CanonicalAddressDatabase.class.getSimpleName();
+
+    static final String TABLE_NAME        = "canonical_addresses";
+    static final String ID_COLUMN         = "_id";
+    static final String NUMBER_COLUMN     = "number";
+    static final String NORMALIZED_COLUMN = "normalized";
 
     private static final String CREATE_TABLE  = "CREATE TABLE " + TABLE_NAME + " (" + ID_COLUMN +
             " integer PRIMARY KEY, " + NUMBER_COLUMN +
-            " TEXT NOT NULL);";
+            " TEXT NOT NULL, " + NORMALIZED_COLUMN + " TEXT);";
     private static final String CREATE_INDEX  = "CREATE INDEX IF NOT EXISTS number_index ON " +
             TABLE_NAME + " (" + NUMBER_COLUMN + ");";
+    private static final String CREATE_NORMALIZED_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS " +
+            "normalized_index ON " + TABLE_NAME + " (" + NORMALIZED_COLUMN + ");";
 
     private static final String[] ID_PROJECTION  = {ID_COLUMN};
-    private static final String SELECTION        = "PHONE_NUMBERS_EQUAL(" + NUMBER_COLUMN + ", ?)";
-
-    private final Map<String,Long> addressCache = Collections.synchronizedMap(new HashMap<String, Long>());
-    private final Map<Long,String> numberCache  = Collections.synchronizedMap(new HashMap<Long,String>());
-
+    static final String SELECTION                = NORMALIZED_COLUMN + " = ?";
+
+    // rows the upgrade couldn't key (duplicates of another normalized number)
+    private static final String LEGACY_SELECTION = NORMALIZED_COLUMN + " IS NULL AND " +
+            "PHONE_NUMBERS_EQUAL(" + NUMBER_COLUMN + ", ?)";
+
+    private static final int CACHE_SIZE = 1024;
+
+    private final BoundedConcurrentCache<String, Long> addressCache = new BoundedConcurrentCache<>(CACHE_SIZE);
+    private final BoundedConcurrentCache<Long, String> numberCache  = new BoundedConcurrentCache<>(CACHE_SIZE);
+
+    private final BoundedConcurrentCache.Loader<String, Long> addressLoader =
+            new BoundedConcurrentCache.Loader<String, Long>() {
+                @Override
+                public Long load(String number) {
+                    return getCanonicalAddressFromDatabase(number);
+                }
+            };
+
+    private final BoundedConcurrentCache.Loader<Long, String> numberLoader =
+            new BoundedConcurrentCache.Loader<Long, String>() {
+                @Override
+                public String load(Long canonicalAddress) throws NoSuchAddressException {
+                    return getNumberFromDatabase(canonicalAddress);
+                }
+            };
+
+    private final Context          context;
     private final SQLiteOpenHelper databaseHelper;
 
-    CanonicalAddressDatabase(SQLiteOpenHelper databaseHelper) {
+    // the local number the normalized column was last keyed with, "" for none
+    private volatile String normalizedFor;
+
+    CanonicalAddressDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+        this.context        = context.getApplicationContext();
         this.databaseHelper = databaseHelper;
     }
 
     public String getNumberFromCanonicalAddress(long canonicalAddress) throws NoSuchAddressException {
-        String number;
+        try {
+            return numberCache.get(canonicalAddress, numberLoader);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NoSuchAddressException) {
+                throw (NoSuchAddressException) e.getCause();
+            }
+            throw propagate(e);
+        }
+    }
+
+    public long getCanonicalAddressFromNumber(String number) {
+        try {
+            return addressCache.get(number, addressLoader);
+        } catch (ExecutionException e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Resolves many numbers at once: cached numbers are answered from memory, the rest
+     * is looked up with one query per {@link SqlUtil#MAX_SELECTION_ARGS} numbers, and
+     * unknown numbers are inserted in a single transaction.
+     */
+    public Map<String, Long> getCanonicalAddressesFromNumbers(Collection<String> numbers) {
+        Map<String, Long>         results     = new HashMap<>(numbers.size());
+        Map<String, List<String>> missing     = new HashMap<>();
+        String                    localNumber = getNormalizationNumber();
+
+        for (String number : numbers) {
+            Long canonicalAddress = addressCache.get(number);
+
+            if (canonicalAddress != null) {
+                results.put(number, canonicalAddress);
+            } else {
+                String       normalized = normalizeNumber(number, localNumber);
+                List<String> raw        = missing.get(normalized);
+
+                if (raw == null) {
+                    raw = new LinkedList<>();
+                    missing.put(normalized, raw);
+                }
+                raw.add(number);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        Map<String, Long> resolved = new HashMap<>(numbers.size());
+        SQLiteDatabase    db       = databaseHelper.getWritableDatabase();
+        db.beginTransaction();
+
+        try {
+            for (List<String> chunk : SqlUtil.partition(missing.keySet())) {
+                Cursor cursor = null;
+
+                try {
+                    cursor = db.query(TABLE_NAME, new String[] {ID_COLUMN, NORMALIZED_COLUMN},
+                            SqlUtil.buildInSelection(NORMALIZED_COLUMN, chunk.size()),
+                            SqlUtil.toSelectionArgs(chunk), null, null, null);
+
+                    while (cursor != null && cursor.moveToNext()) {
+                        putAll(resolved, missing.remove(cursor.getString(1)), cursor.getLong(0));
+                    }
+                } finally {
+                    if (cursor != null)
+                        cursor.close();
+                }
+            }
+
+            for (Map.Entry<String, List<String>> entry : missing.entrySet()) {
+                String number           = entry.getValue().get(0);
+                long   canonicalAddress = queryCanonicalAddress(db, LEGACY_SELECTION, number);
+
+                if (canonicalAddress == -1) {
+                    canonicalAddress = insertCanonicalAddress(db, number, entry.getKey());
+                }
 
-        if ((number = getNumberFromCache(canonicalAddress)) != null)
-            return number;
+                putAll(resolved, entry.getValue(), canonicalAddress);
+            }
 
-        number = getNumberFromDatabase(canonicalAddress);
-        numberCache.put(canonicalAddress, number);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
-        return number;
+        // only cache what has been committed
+        for (Map.Entry<String, Long> entry : resolved.entrySet()) {
+            addressCache.put(entry.getKey(), entry.getValue());
+        }
+
+        results.putAll(resolved);
+        return results;
     }
 
-    public long getCanonicalAddressFromNumber(String number) {
-        long canonicalAddress;
+    /**
+     * Bulk counterpart of {@link #getNumberFromCanonicalAddress(long)}. Addresses
+     * which don't exist are missing from the result.
+     */
+    public Map<Long, String> getNumbersFromCanonicalAddresses(Collection<Long> canonicalAddresses) {
+        Map<Long, String> results = new HashMap<>(canonicalAddresses.size());
+        List<Long>        missing = new LinkedList<>();
+
+        for (Long canonicalAddress : canonicalAddresses) {
+            String number = numberCache.get(canonicalAddress);
+
+            if (number != null) {
+                results.put(canonicalAddress, number);
+            } else {
+                missing.add(canonicalAddress);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+        for (List<Long> chunk : SqlUtil.partition(missing)) {
+            Cursor cursor = null;
+
+            try {
+                cursor = db.query(TABLE_NAME, new String[] {ID_COLUMN, NUMBER_COLUMN},
+                        SqlUtil.buildInSelection(ID_COLUMN, chunk.size()),
+                        SqlUtil.toSelectionArgs(chunk), null, null, null);
+
+                while (cursor != null && cursor.moveToNext()) {
+                    long   canonicalAddress = cursor.getLong(0);
+                    String number           = cursor.getString(1);
+
+                    numberCache.put(canonicalAddress, number);
+                    results.put(canonicalAddress, number);
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Fills both caches from the table with a single query, so that resolving
+     * known peers later on doesn't have to touch the database.
+     */
+    public void warmUp() {
+        Cursor cursor = null;
+
+        try {
+            SQLiteDatabase db = databaseHelper.getReadableDatabase();
+            cursor            = db.query(TABLE_NAME, new String[] {ID_COLUMN, NUMBER_COLUMN},
+                    null, null, null, null, ID_COLUMN + " DESC", String.valueOf(CACHE_SIZE));
+
+            while (cursor != null && cursor.moveToNext()) {
+                long   canonicalAddress = cursor.getLong(0);
+                String number           = cursor.getString(1);
 
-        if ((canonicalAddress = getCanonicalAddressFromCache(number)) != -1)
+                addressCache.put(number, canonicalAddress);
+                numberCache.put(canonicalAddress, number);
+            }
+
+            Log.d(TAG, "Preloaded " + addressCache.size() + " canonical addresses");
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    private static RuntimeException propagate(ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+        }
+        return new RuntimeException(e.getCause());
+    }
+
+    private long getCanonicalAddressFromDatabase(String number) {
+        String         normalized = normalizeNumber(number, getNormalizationNumber());
+        SQLiteDatabase db         = databaseHelper.getWritableDatabase();
+
+        long canonicalAddress = queryCanonicalAddress(db, SELECTION, normalized);
+        if (canonicalAddress != -1) {
             return canonicalAddress;
+        }
 
-        canonicalAddress = getCanonicalAddressFromDatabase(number);
-        addressCache.put(number, canonicalAddress);
+        canonicalAddress = queryCanonicalAddress(db, LEGACY_SELECTION, number);
+        if (canonicalAddress != -1) {
+            return canonicalAddress;
+        }
 
-        return canonicalAddress;
+        return insertCanonicalAddress(db, number, normalized);
     }
 
-    private long getCanonicalAddressFromCache(String number) {
-        if (addressCache.containsKey(number))
-            return addressCache.get(number);
+    /**
+     * Returns the local number to normalize with. Normalized keys depend on it, so when it
+     * differs from the one the table was keyed with, because it wasn't known yet or the
+     * user re-registered with another number, all rows are keyed again first. Otherwise a
+     * lookup would miss the existing row and create a second address for the same peer.
+     */
+    private String getNormalizationNumber() {
+        String localNumber = WhisperPreferences.getLocalNumber(context);
+        String current     = localNumber == null ? "" : localNumber;
+
+        if (!current.equals(normalizedFor)) {
+            synchronized (this) {
+                if (normalizedFor == null) {
+                    normalizedFor = WhisperPreferences.getNormalizedForNumber(context);
+                }
+
+                if (!current.equals(normalizedFor)) {
+                    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        db.execSQL("UPDATE " + TABLE_NAME + " SET " + NORMALIZED_COLUMN + " = NULL;");
+                        normalizeNumbers(db, localNumber);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+
+                    WhisperPreferences.setNormalizedForNumber(context, current);
+                    normalizedFor = current;
+                    Log.i(TAG, "Normalized canonical addresses for a new local number");
+                }
+            }
+        }
 
-        return -1L;
+        return localNumber;
     }
 
-    private String getNumberFromCache(long canonicalAddress) {
-        if (numberCache.containsKey(canonicalAddress))
-            return numberCache.get(canonicalAddress);
+    private long insertCanonicalAddress(SQLiteDatabase db, String number, String normalized) {
+        ContentValues contentValues = new ContentValues(2);
+        contentValues.put(NUMBER_COLUMN, number);
+        contentValues.put(NORMALIZED_COLUMN, normalized);
+
+        long canonicalAddress = db.insertWithOnConflict(TABLE_NAME, null, contentValues,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (canonicalAddress == -1) {
+            // lost a race against another writer of the same normalized number
+            canonicalAddress = queryCanonicalAddress(db, SELECTION, normalized);
+        }
 
-        return null;
+        return canonicalAddress;
     }
 
-    private long getCanonicalAddressFromDatabase(String number) {
+    private static void putAll(Map<String, Long> results, List<String> numbers, long canonicalAddress) {
+        if (numbers == null) {
+            return;
+        }
+
+        for (String number : numbers) {
+            results.put(number, canonicalAddress);
+        }
+    }
+
+    static long queryCanonicalAddress(SQLiteDatabase db, String selection, String argument) {
         Cursor cursor = null;
 
         try {
-            SQLiteDatabase db = databaseHelper.getWritableDatabase();
-            cursor            = db.query(TABLE_NAME, ID_PROJECTION, SELECTION,
-                    new String[]{number}, null, null, null);
+            cursor = db.query(TABLE_NAME, ID_PROJECTION, selection,
+                    new String[]{argument}, null, null, null, "1");
 
-            if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
-                ContentValues contentValues = new ContentValues(1);
-                contentValues.put(NUMBER_COLUMN, number);
-
-                return db.insert(TABLE_NAME, null, contentValues);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return -1L;
             }
 
             return cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
@@ -130,9 +392,68 @@ public class CanonicalAddressDatabase {
         }
     }
 
+    /**
+     * The lookup key for a number: E.164 when it can be formatted, otherwise the
+     * dialable characters only, so equal numbers written differently share one row.
+     */
+    static String normalizeNumber(String number, String localNumber) {
+        if (!TextUtils.isEmpty(localNumber)) {
+            try {
+                return PhoneNumberCache.getInstance().formatNumber(number, localNumber);
+            } catch (InvalidNumberException e) {
+                // not a phone number we can format, fall back below
+            }
+        }
+
+        StringBuilder normalized = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (Character.isDigit(c) || (c == '+' && normalized.length() == 0)) {
+                normalized.append(c);
+            }
+        }
+
+        return normalized.length() > 0 ? normalized.toString() : number.trim();
+    }
+
     public static void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_TABLE);
         db.execSQL(CREATE_INDEX);
+        db.execSQL(CREATE_NORMALIZED_INDEX);
+    }
+
+    /**
+     * Adds and backfills the normalized number column.
+     */
+    static void addNormalizedNumbers(SQLiteDatabase db, String localNumber) {
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + NORMALIZED_COLUMN + " TEXT;");
+        db.execSQL(CREATE_NORMALIZED_INDEX);
+        normalizeNumbers(db, localNumber);
+    }
+
+    /**
+     * Keys every row whose normalized column is NULL. Rows which normalize to an already
+     * keyed number are left NULL and only found through {@link #LEGACY_SELECTION}.
+     */
+    static void normalizeNumbers(SQLiteDatabase db, String localNumber) {
+        SQLiteStatement update = db.compileStatement("UPDATE OR IGNORE " + TABLE_NAME +
+                " SET " + NORMALIZED_COLUMN + " = ? WHERE " + ID_COLUMN + " = ?");
+        Cursor          cursor = null;
+
+        try {
+            cursor = db.query(TABLE_NAME, new String[] {ID_COLUMN, NUMBER_COLUMN},
+                    NORMALIZED_COLUMN + " IS NULL", null, null, null, ID_COLUMN);
+
+            while (cursor != null && cursor.moveToNext()) {
+                update.bindString(1, normalizeNumber(cursor.getString(1), localNumber));
+                update.bindLong(2, cursor.getLong(0));
+                update.execute();
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            update.close();
+        }
     }
 
 }
@@ -28,6 +28,7 @@ public class DatabaseFactory {
     private final PendingApprovalDatabase    pendingApprovalDatabase;
     private final GroupDatabase              groupDatabase;
     private final FailedGroupMessageDatabase failedGroupMessageDatabase;
+    private final EnvelopeJournalDatabase    envelopeJournalDatabase;
 
     public synchronized static DatabaseFactory getInstance(Context context) {
         if (instance == null)
@@ -40,10 +41,11 @@ public class DatabaseFactory {
         WhisperPushDbHelper databaseHelper = WhisperPushDbHelper.getInstance(context);
 
         this.identityDatabase           = new IdentityDatabase(context, databaseHelper);
-        this.addressDatabase            = new CanonicalAddressDatabase(databaseHelper);
+        this.addressDatabase            = new CanonicalAddressDatabase(context, databaseHelper);
         this.pendingApprovalDatabase    = new PendingApprovalDatabase(context, databaseHelper);
         this.groupDatabase              = new GroupDatabase(databaseHelper);
         this.failedGroupMessageDatabase = new FailedGroupMessageDatabase(databaseHelper);
+        this.envelopeJournalDatabase    = new EnvelopeJournalDatabase(databaseHelper);
     }
 
     public static CanonicalAddressDatabase getAddressDatabase(Context context) {
@@ -66,4 +68,8 @@ public class DatabaseFactory {
         return getInstance(context).failedGroupMessageDatabase;
     }
 
+    public static EnvelopeJournalDatabase getEnvelopeJournalDatabase(Context context) {
+        return getInstance(context).envelopeJournalDatabase;
+    }
+
 }
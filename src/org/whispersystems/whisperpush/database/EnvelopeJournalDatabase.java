@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.database;
+
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Envelopes which have been fetched and acknowledged, but not handled yet. An envelope
+ * is written here before the server is told it has been received, and deleted once its
+ * contents have been stored, so one that was interrupted by the process dying is
+ * picked up again on the next run.
+ *
+ * Decrypting advances the session, so an envelope can't be decrypted a second time.
+ * Text messages therefore have their plaintext recorded here right after decryption,
+ * and are replayed from that. An envelope whose handling failed before it was decrypted,
+ * or a text message whose storing failed, is kept for a retry, up to a few attempts.
+ */
+public class EnvelopeJournalDatabase {
+
+    private static final String TABLE_NAME = "envelope_journal";
+
+    public  static final String ID         = "_id";
+    public  static final String TYPE       = "type";
+    public  static final String SOURCE     = "source";
+    public  static final String DEVICE     = "device";
+    public  static final String RELAY      = "relay";
+    public  static final String BODY       = "body";
+    public  static final String CONTENT    = "content";
+    public  static final String TIMESTAMP  = "timestamp";
+    public  static final String PLAINTEXT  = "plaintext";
+    public  static final String ATTEMPTS   = "attempts";
+
+    public static final String CREATE_TABLE =
+        "CREATE TABLE " + TABLE_NAME + " (" +
+            ID + " INTEGER PRIMARY KEY, " +
+            TYPE + " INTEGER, " +
+            SOURCE + " TEXT, " +
+            DEVICE + " INTEGER, " +
+            RELAY + " TEXT, " +
+            BODY + " BLOB, " +
+            CONTENT + " BLOB, " +
+            TIMESTAMP + " INTEGER, " +
+            PLAINTEXT + " TEXT, " +
+            ATTEMPTS + " INTEGER DEFAULT 0);";
+
+    private static final String[] PROJECTION =
+        {ID, TYPE, SOURCE, DEVICE, RELAY, BODY, CONTENT, TIMESTAMP, PLAINTEXT, ATTEMPTS};
+
+    private final SQLiteOpenHelper databaseHelper;
+
+    EnvelopeJournalDatabase(SQLiteOpenHelper databaseHelper) {
+        this.databaseHelper = databaseHelper;
+    }
+
+    public long append(TextSecureEnvelope envelope) {
+        ContentValues values = new ContentValues();
+        values.put(TYPE, envelope.getType());
+        values.put(SOURCE, envelope.getSource());
+        values.put(DEVICE, envelope.getSourceDevice());
+        values.put(RELAY, envelope.getRelay());
+        values.put(BODY, envelope.getLegacyMessage());
+        values.put(CONTENT, envelope.getContent());
+        values.put(TIMESTAMP, envelope.getTimestamp());
+
+        return databaseHelper.getWritableDatabase().insertOrThrow(TABLE_NAME, null, values);
+    }
+
+    /**
+     * @return the journaled envelopes with an id above {@code afterId}, in the order
+     *         they were appended
+     */
+    public List<Entry> getEntries(long afterId) {
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, PROJECTION,
+                ID + " > ?", new String[] {afterId+""}, null, null, ID);
+        try {
+            while (cursor.moveToNext()) {
+                TextSecureEnvelope envelope = new TextSecureEnvelope(cursor.getInt(1), cursor.getString(2),
+                        cursor.getInt(3), cursor.getString(4), cursor.getLong(7),
+                        cursor.getBlob(5), cursor.getBlob(6));
+                entries.add(new Entry(cursor.getLong(0), envelope, cursor.getString(8), cursor.getInt(9)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Records the decrypted body of a text message, which replaces the envelope from now on.
+     */
+    public void setPlaintext(long id, String plaintext) {
+        ContentValues values = new ContentValues(1);
+        values.put(PLAINTEXT, plaintext);
+        databaseHelper.getWritableDatabase().update(TABLE_NAME, values, ID + " = ?", new String[] {id+""});
+    }
+
+    /**
+     * Counts a failed attempt at handling the given envelopes, dropping those which
+     * have now failed {@code maxAttempts} times.
+     */
+    public void recordFailures(Collection<Long> ids, int maxAttempts) {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (List<Long> chunk : SqlUtil.partition(ids)) {
+                String   selection     = SqlUtil.buildInSelection(ID, chunk.size());
+                String[] selectionArgs = SqlUtil.toSelectionArgs(chunk);
+
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + ATTEMPTS + " = " + ATTEMPTS + " + 1" +
+                           " WHERE " + selection, selectionArgs);
+
+                String[] deleteArgs = new String[selectionArgs.length + 1];
+                System.arraycopy(selectionArgs, 0, deleteArgs, 0, selectionArgs.length);
+                deleteArgs[selectionArgs.length] = String.valueOf(maxAttempts);
+                db.delete(TABLE_NAME, selection + " AND " + ATTEMPTS + " >= ?", deleteArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void delete(long id) {
+        databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID + " = ?", new String[] {id+""});
+    }
+
+    public void delete(Collection<Long> ids) {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (List<Long> chunk : SqlUtil.partition(ids)) {
+                db.delete(TABLE_NAME, SqlUtil.buildInSelection(ID, chunk.size()), SqlUtil.toSelectionArgs(chunk));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public static void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE);
+    }
+
+    public static class Entry {
+
+        private final long               id;
+        private final TextSecureEnvelope envelope;
+        private final String             plaintext;
+        private final int                attempts;
+
+        Entry(long id, TextSecureEnvelope envelope, String plaintext, int attempts) {
+            this.id        = id;
+            this.envelope  = envelope;
+            this.plaintext = plaintext;
+            this.attempts  = attempts;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public TextSecureEnvelope getEnvelope() {
+            return envelope;
+        }
+
+        /**
+         * @return the decrypted body, if this is a text message which was decrypted before
+         */
+        public String getPlaintext() {
+            return plaintext;
+        }
+
+        /**
+         * @return how often handling this envelope failed before
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
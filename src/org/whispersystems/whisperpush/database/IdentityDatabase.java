@@ -33,6 +33,13 @@ import org.whispersystems.whisperpush.crypto.MasterSecret;
 import org.whispersystems.whisperpush.crypto.MessagePeer;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static java.lang.String.valueOf;
 
@@ -130,6 +137,83 @@ public class IdentityDatabase {
         }
     }
 
+    /**
+     * Loads the stored identities of several peers with one query per {@link SqlUtil#MAX_SELECTION_ARGS}
+     * numbers and a single {@link MasterCipher}. Every returned number maps to the keys whose MAC
+     * verified; an empty list means no identity is stored yet, which is trusted just like in
+     * {@link #isValidIdentity}. Numbers with stored rows of which none could be verified are left
+     * out, so callers fall back to {@link #isValidIdentity} for them.
+     */
+    public Map<String, List<IdentityKey>> getValidIdentities(MasterSecret masterSecret,
+                                                             Collection<String> numbers)
+    {
+        Map<String, List<IdentityKey>> results = new HashMap<String, List<IdentityKey>>();
+        if (numbers == null || numbers.isEmpty()) {
+            return results;
+        }
+
+        Map<String, Long>            addressIds      = DatabaseFactory.getAddressDatabase(context)
+                .getCanonicalAddressesFromNumbers(numbers);
+        Map<Long, List<IdentityKey>> keys            = new HashMap<Long, List<IdentityKey>>();
+        Set<Long>                    storedAddresses = new HashSet<Long>();
+        Set<Long>                    brokenAddresses = new HashSet<Long>();
+
+        for (Long addressId : addressIds.values()) {
+            keys.put(addressId, new LinkedList<IdentityKey>());
+        }
+
+        SQLiteDatabase database     = databaseHelper.getReadableDatabase();
+        MasterCipher   masterCipher = new MasterCipher(masterSecret);
+
+        for (List<Long> chunk : SqlUtil.partition(keys.keySet())) {
+            Cursor cursor = null;
+
+            try {
+                cursor = database.query(TABLE_NAME, null, SqlUtil.buildInSelection(ADDRESS, chunk.size()),
+                        SqlUtil.toSelectionArgs(chunk), null, null, null);
+
+                while (cursor != null && cursor.moveToNext()) {
+                    long   addressId          = cursor.getLong(cursor.getColumnIndexOrThrow(ADDRESS));
+                    String serializedIdentity = cursor.getString(cursor.getColumnIndexOrThrow(IDENTITY_KEY));
+                    String mac                = cursor.getString(cursor.getColumnIndexOrThrow(MAC));
+
+                    storedAddresses.add(addressId);
+
+                    try {
+                        if (!masterCipher.verifyMacFor(addressId + serializedIdentity, Base64.decode(mac))) {
+                            Log.w("IdentityDatabase", "MAC failed");
+                            continue;
+                        }
+
+                        keys.get(addressId).add(new IdentityKey(Base64.decode(serializedIdentity), 0));
+                    } catch (IOException e) {
+                        Log.w("IdentityDatabase", e);
+                        brokenAddresses.add(addressId);
+                    } catch (InvalidKeyException e) {
+                        Log.w("IdentityDatabase", e);
+                        brokenAddresses.add(addressId);
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        for (Map.Entry<String, Long> entry : addressIds.entrySet()) {
+            long              addressId  = entry.getValue();
+            List<IdentityKey> validKeys  = keys.get(addressId);
+            boolean           unverified = storedAddresses.contains(addressId) && validKeys.isEmpty();
+
+            if (!unverified && !brokenAddresses.contains(addressId)) {
+                results.put(entry.getKey(), validKeys);
+            }
+        }
+
+        return results;
+    }
+
     public void saveIdentity(MasterSecret masterSecret,
                              MessagePeer address,
                              IdentityKey identityKey)
@@ -180,6 +264,8 @@ public class IdentityDatabase {
         private final Cursor cursor;
         private final MasterCipher cipher;
 
+        private Map<Long, String> numbers;
+
         public Reader(MasterSecret masterSecret, Cursor cursor) {
             this.cursor = cursor;
             this.cipher = new MasterCipher(masterSecret);
@@ -190,8 +276,7 @@ public class IdentityDatabase {
 
             try {
                 long canonicalAddress = cursor.getLong(cursor.getColumnIndexOrThrow(ADDRESS));
-                number                = DatabaseFactory.getAddressDatabase(context)
-                        .getNumberFromCanonicalAddress(canonicalAddress);
+                number                = getNumber(canonicalAddress);
 
                 String identityKeyString = cursor.getString(cursor.getColumnIndexOrThrow(IDENTITY_KEY));
                 String mac               = cursor.getString(cursor.getColumnIndexOrThrow(MAC));
@@ -213,6 +298,36 @@ public class IdentityDatabase {
                 return new Pair<String, IdentityKey>(null, null);
             }
         }
+
+        /**
+         * Resolves the numbers of all rows in the cursor on first use, rather than
+         * one canonical address lookup per row.
+         */
+        private String getNumber(long canonicalAddress) throws NoSuchAddressException {
+            if (numbers == null) {
+                List<Long> addresses = new LinkedList<Long>();
+                int        position  = cursor.getPosition();
+
+                cursor.moveToPosition(-1);
+                while (cursor.moveToNext()) {
+                    addresses.add(cursor.getLong(cursor.getColumnIndexOrThrow(ADDRESS)));
+                }
+                cursor.moveToPosition(position);
+
+                numbers = DatabaseFactory.getAddressDatabase(context)
+                        .getNumbersFromCanonicalAddresses(addresses);
+            }
+
+            String number = numbers.get(canonicalAddress);
+            if (number == null) {
+                // a row the cursor didn't hold yet when the numbers were resolved
+                number = DatabaseFactory.getAddressDatabase(context)
+                        .getNumberFromCanonicalAddress(canonicalAddress);
+                numbers.put(canonicalAddress, number);
+            }
+
+            return number;
+        }
     }
 
     public static void onCreate(SQLiteDatabase db) {
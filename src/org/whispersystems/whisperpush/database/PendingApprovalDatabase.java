@@ -17,6 +17,10 @@
 package org.whispersystems.whisperpush.database;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
 
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 import org.whispersystems.textsecure.internal.util.Base64;
@@ -97,6 +101,20 @@ public class PendingApprovalDatabase {
         context.getContentResolver().notifyChange(CHANGE_URI, null);
     }
 
+    public void delete(Collection<Long> ids) {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (List<Long> chunk : SqlUtil.partition(ids)) {
+                db.delete(TABLE_NAME, SqlUtil.buildInSelection(ID, chunk.size()), SqlUtil.toSelectionArgs(chunk));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        context.getContentResolver().notifyChange(CHANGE_URI, null);
+    }
+
     public TextSecureEnvelope get(long id) {
         Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME,
                 null, ID + "=?", new String[] {id+""}, null, null, null);
@@ -105,6 +123,28 @@ public class PendingApprovalDatabase {
         finally { reader.close(); }
     }
 
+    /**
+     * @return the envelopes with the given ids which still exist, in the order they were received
+     */
+    public List<TextSecureEnvelope> get(Collection<Long> ids) {
+        List<TextSecureEnvelope> envelopes = new ArrayList<>(ids.size());
+        // sorted, so that ordering each chunk by id orders the whole list
+        for (List<Long> chunk : SqlUtil.partition(new TreeSet<>(ids))) {
+            Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null,
+                    SqlUtil.buildInSelection(ID, chunk.size()), SqlUtil.toSelectionArgs(chunk), null, null, ID);
+            Reader reader = readerFor(cursor);
+            try {
+                TextSecureEnvelope envelope;
+                while ((envelope = reader.getNext()) != null) {
+                    envelopes.add(envelope);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return envelopes;
+    }
+
     public Reader readerFor(Cursor cursor) {
         return new Reader(cursor);
     }
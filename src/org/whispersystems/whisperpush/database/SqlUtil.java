@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.database;
+
+import org.whispersystems.whisperpush.util.Util;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Helpers for queries that select a set of values with {@code IN (?, ?, ...)}.
+ */
+public class SqlUtil {
+
+    // stay well below SQLITE_MAX_VARIABLE_NUMBER (999)
+    public static final int MAX_SELECTION_ARGS = 500;
+
+    private SqlUtil() {
+    }
+
+    /**
+     * Splits {@code values} into lists small enough to be bound to a single statement.
+     */
+    public static <T> List<List<T>> partition(Collection<T> values) {
+        return Util.partition(values, MAX_SELECTION_ARGS);
+    }
+
+    public static String buildInSelection(String column, int count) {
+        StringBuilder selection = new StringBuilder(column.length() + 6 + count * 2);
+        selection.append(column).append(" IN (");
+
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+
+        return selection.append(')').toString();
+    }
+
+    public static String[] toSelectionArgs(Collection<?> values) {
+        String[] args  = new String[values.size()];
+        int      index = 0;
+
+        for (Object value : values) {
+            args[index++] = String.valueOf(value);
+        }
+
+        return args;
+    }
+}
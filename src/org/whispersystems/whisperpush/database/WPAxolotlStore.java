@@ -1,5 +1,6 @@
 package org.whispersystems.whisperpush.database;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.whispersystems.libaxolotl.AxolotlAddress;
@@ -27,18 +28,40 @@ public class WPAxolotlStore implements AxolotlStore {
         return instance;
     }
 
+    private final Context             context;
+    private final MasterSecret        masterSecret;
     private final WPPreKeyStore       preKeyStore;
     private final SignedPreKeyStore   signedPreKeyStore;
     private final WPIdentityKeyStore  identityKeyStore;
     private final WPSessionStore      sessionStore;
 
     public WPAxolotlStore(Context context, MasterSecret masterSecret) {
+        this(context, masterSecret, new WPIdentityKeyStore(context, masterSecret));
+    }
+
+    private WPAxolotlStore(Context context, MasterSecret masterSecret,
+                           WPIdentityKeyStore identityKeyStore) {
+        this.context = context;
+        this.masterSecret = masterSecret;
         this.preKeyStore = new WPPreKeyStore(context, masterSecret);
         this.signedPreKeyStore = new WPPreKeyStore(context, masterSecret);
-        this.identityKeyStore = new WPIdentityKeyStore(context, masterSecret);
+        this.identityKeyStore = identityKeyStore;
         this.sessionStore = new WPSessionStore(context, masterSecret);
     }
 
+    /**
+     * Returns a store for a single fan-out to {@code numbers}, whose identities are loaded
+     * in one pass up front, so the trust checks made while encrypting for each of them
+     * don't go to the database one by one. The prefetched identities belong to that store
+     * alone; it shouldn't outlive the send it was made for.
+     */
+    public WPAxolotlStore withPrefetchedIdentities(Collection<String> numbers) {
+        return new WPAxolotlStore(context, masterSecret,
+                new WPIdentityKeyStore(context, masterSecret,
+                        DatabaseFactory.getIdentityDatabase(context)
+                                       .getValidIdentities(masterSecret, numbers)));
+    }
+
     @Override
     public IdentityKeyPair getIdentityKeyPair() {
         return identityKeyStore.getIdentityKeyPair();
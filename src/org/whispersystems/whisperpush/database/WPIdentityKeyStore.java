@@ -10,14 +10,33 @@ import org.whispersystems.whisperpush.crypto.MasterSecret;
 import org.whispersystems.whisperpush.crypto.MessagePeer;
 import org.whispersystems.whisperpush.util.WhisperPreferences;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class WPIdentityKeyStore implements IdentityKeyStore {
 
   private final Context      context;
   private final MasterSecret masterSecret;
 
+  private final Map<String, List<IdentityKey>> prefetchedIdentities;
+
   public WPIdentityKeyStore(Context context, MasterSecret masterSecret) {
-    this.context      = context;
-    this.masterSecret = masterSecret;
+    this(context, masterSecret, Collections.<String, List<IdentityKey>>emptyMap());
+  }
+
+  /**
+   * @param prefetchedIdentities identities loaded in bulk with
+   *                             {@link IdentityDatabase#getValidIdentities}, which trust
+   *                             checks are answered from instead of the database
+   */
+  WPIdentityKeyStore(Context context, MasterSecret masterSecret,
+                     Map<String, List<IdentityKey>> prefetchedIdentities)
+  {
+    this.context              = context;
+    this.masterSecret         = masterSecret;
+    this.prefetchedIdentities = new ConcurrentHashMap<String, List<IdentityKey>>(prefetchedIdentities);
   }
 
   @Override
@@ -32,20 +51,27 @@ public class WPIdentityKeyStore implements IdentityKeyStore {
 
   @Override
   public void saveIdentity(String number, IdentityKey identityKey) {
+    prefetchedIdentities.remove(number);
     MessagePeer recipient = new MessagePeer(context, number);
     DatabaseFactory.getIdentityDatabase(context).saveIdentity(masterSecret, recipient, identityKey);
   }
 
   @Override
   public boolean isTrustedIdentity(String number, IdentityKey identityKey) {
+    List<IdentityKey> knownIdentities = prefetchedIdentities.get(number);
+    if (knownIdentities != null) {
+      return knownIdentities.isEmpty() || knownIdentities.contains(identityKey);
+    }
+
     MessagePeer recipient = new MessagePeer(context, number);
     return DatabaseFactory.getIdentityDatabase(context)
                           .isValidIdentity(masterSecret, recipient, identityKey);
   }
 
   public boolean deleteIdentity(String number) {
+    prefetchedIdentities.remove(number);
     MessagePeer recipient = new MessagePeer(context, number);
     return DatabaseFactory.getIdentityDatabase(context).deleteIdentity(recipient);
   }
 
-}
\ No newline at end of file
+}
@@ -5,11 +5,12 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import org.whispersystems.whisperpush.database.table.ContactDirectoryTable;
+import org.whispersystems.whisperpush.util.WhisperPreferences;
 
 public class WhisperPushDbHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "whisper_push.db";
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 5;
 
     private static volatile WhisperPushDbHelper sInstance;
 
@@ -24,8 +25,11 @@ public class WhisperPushDbHelper extends SQLiteOpenHelper {
         return sInstance;
     }
 
+    private final Context context;
+
     private WhisperPushDbHelper(Context appContext) {
         super(appContext, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = appContext;
     }
 
     @Override
@@ -36,6 +40,7 @@ public class WhisperPushDbHelper extends SQLiteOpenHelper {
         PendingApprovalDatabase.onCreate(db);
         GroupDatabase.onCreate(db);
         FailedGroupMessageDatabase.onCreate(db);
+        EnvelopeJournalDatabase.onCreate(db);
     }
 
     @Override
@@ -46,6 +51,15 @@ public class WhisperPushDbHelper extends SQLiteOpenHelper {
         if (oldVersion < 3) {
             FailedGroupMessageDatabase.onCreate(db);
         }
+        if (oldVersion < 4) {
+            String localNumber = WhisperPreferences.getLocalNumber(context);
+            CanonicalAddressDatabase.addNormalizedNumbers(db, localNumber);
+            // or the first lookup would find the table keyed for no number and key it again
+            WhisperPreferences.setNormalizedForNumber(context, localNumber == null ? "" : localNumber);
+        }
+        if (oldVersion < 5) {
+            EnvelopeJournalDatabase.onCreate(db);
+        }
     }
 
 }
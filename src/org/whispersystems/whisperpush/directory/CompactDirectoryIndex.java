@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.directory;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A memory-light stand-in for a map of directory numbers. Each number is kept as a
+ * 62 bit truncated SHA-1 hash with its registered and session flags packed into the
+ * low bits, in a single open-addressing {@code long[]}: about 16 bytes per number
+ * instead of a String, a map entry and a value object.
+ *
+ * Two numbers can share a hash. With 62 bits that takes billions of numbers to become
+ * likely, but a hit is still only a strong hint, not proof, and {@link Directory}
+ * confirms every hit against SQLite.
+ */
+class CompactDirectoryIndex {
+
+  static final int REGISTERED     = 1;
+  static final int SESSION_ACTIVE = 2;
+
+  private static final int  FLAG_BITS = 2;
+  private static final long FLAG_MASK = (1L << FLAG_BITS) - 1;
+  private static final long EMPTY     = 0;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private long[] table;
+  private int    size;
+
+  CompactDirectoryIndex(int expectedSize) {
+    int capacity = 16;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    table = new long[capacity];
+  }
+
+  /**
+   * @return the flags stored for {@code number}, or -1 if it isn't in the index
+   */
+  synchronized int get(String number) {
+    long slot = table[indexOf(table, keyOf(number))];
+    return slot == EMPTY ? -1 : (int) (slot & FLAG_MASK);
+  }
+
+  synchronized boolean contains(String number) {
+    return table[indexOf(table, keyOf(number))] != EMPTY;
+  }
+
+  synchronized void put(String number, int flags) {
+    long key   = keyOf(number);
+    int  index = indexOf(table, key);
+
+    if (table[index] == EMPTY) {
+      if (++size * 2 > table.length) {
+        resize();
+        index = indexOf(table, key);
+      }
+    }
+
+    table[index] = key | (flags & FLAG_MASK);
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  private void resize() {
+    long[] resized = new long[table.length * 2];
+    for (long slot : table) {
+      if (slot != EMPTY) {
+        resized[indexOf(resized, slot & ~FLAG_MASK)] = slot;
+      }
+    }
+    table = resized;
+  }
+
+  /**
+   * Linear probing for the slot holding {@code key}, or the empty slot where it belongs.
+   * The table is never more than half full, so there always is one.
+   */
+  private static int indexOf(long[] table, long key) {
+    int mask  = table.length - 1;
+    int index = (int) (key ^ (key >>> 32)) & mask;
+
+    while (table[index] != EMPTY && (table[index] & ~FLAG_MASK) != key) {
+      index = (index + 1) & mask;
+    }
+
+    return index;
+  }
+
+  private static long keyOf(String number) {
+    byte[] hash = digest.get().digest(number.getBytes(UTF_8));
+    long   key  = 0;
+
+    for (int i = 0; i < 8; i++) {
+      key = (key << 8) | (hash[i] & 0xff);
+    }
+
+    key &= ~FLAG_MASK;
+    // a key of zero would read as an empty slot
+    return key == EMPTY ? 1L << FLAG_BITS : key;
+  }
+}
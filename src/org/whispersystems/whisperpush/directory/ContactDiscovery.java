@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.directory;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.TextSecureAccountManager;
+import org.whispersystems.textsecure.api.push.ContactTokenDetails;
+import org.whispersystems.whisperpush.util.Util;
+import org.whispersystems.whisperpush.util.WhisperServiceFactory;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Asks the server which of a set of numbers are registered. The numbers are sent in
+ * fixed size chunks, a few at a time, and every chunk is written to the {@link Directory}
+ * as soon as it is answered, so a failing chunk doesn't lose the work of the others.
+ */
+public class ContactDiscovery {
+
+    private static final String TAG = ContactDiscovery.class.getSimpleName();
+
+    private static final int  CHUNK_SIZE    = 1000;
+    private static final int  PARALLELISM   = 3;
+    private static final int  MAX_ATTEMPTS  = 3;
+    private static final long RETRY_BACKOFF = 2000;
+
+    private final Context   context;
+    private final Directory directory;
+
+    public ContactDiscovery(Context context, Directory directory) {
+        this.context   = context.getApplicationContext();
+        this.directory = directory;
+    }
+
+    /**
+     * @throws IOException if some chunk still failed after all retries; the
+     *                     chunks which succeeded are stored regardless
+     */
+    public void discover(Set<String> numbers) throws IOException {
+        discover(numbers, new DirectorySyncReport(false, false));
+    }
+
+    /**
+     * Like {@link #discover(Set)}, recording timings and the difference to the current
+     * directory in {@code report}. For a dry run report nothing is written.
+     */
+    public void discover(Set<String> numbers, final DirectorySyncReport report) throws IOException {
+        if (numbers.isEmpty()) {
+            return;
+        }
+
+        List<List<String>> chunks = Util.partition(numbers, CHUNK_SIZE);
+        report.chunks.addAndGet(chunks.size());
+
+        if (chunks.size() == 1) {
+            try {
+                discoverChunk(chunks.get(0), report);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        ExecutorService    executor = Executors.newFixedThreadPool(Math.min(PARALLELISM, chunks.size()));
+        List<Future<Void>> results  = new LinkedList<>();
+        IOException        failure  = null;
+
+        try {
+            for (final List<String> chunk : chunks) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        discoverChunk(chunk, report);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Discovery chunk failed", e.getCause());
+                    report.failedChunks.incrementAndGet();
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void discoverChunk(List<String> chunk, DirectorySyncReport report)
+            throws IOException, InterruptedException
+    {
+        TextSecureAccountManager manager = WhisperServiceFactory.createAccountManager(context);
+        Set<String>              numbers = new HashSet<>(chunk);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long                      start        = System.nanoTime();
+                List<ContactTokenDetails> activeTokens = manager.getContacts(numbers);
+                report.serverNanos.addAndGet(System.nanoTime() - start);
+
+                for (ContactTokenDetails activeToken : activeTokens) {
+                    numbers.remove(activeToken.getNumber());
+                    report.recordDelta(directory.getActiveState(activeToken.getNumber()), true);
+                }
+                for (String number : numbers) {
+                    report.recordDelta(directory.getActiveState(number), false);
+                }
+
+                if (!report.dryRun) {
+                    start = System.nanoTime();
+                    directory.setNumbers(activeTokens, numbers);
+                    report.writeNanos.addAndGet(System.nanoTime() - start);
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Log.w(TAG, "Discovery of " + numbers.size() + " numbers failed, attempt " + attempt, e);
+                Thread.sleep(RETRY_BACKOFF << (attempt - 1));
+            }
+        }
+    }
+}
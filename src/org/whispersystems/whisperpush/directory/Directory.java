@@ -19,24 +19,31 @@ package org.whispersystems.whisperpush.directory;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.util.Log;
 import android.text.TextUtils;
 
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
-import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 import org.whispersystems.whisperpush.database.WhisperPushDbHelper;
 import org.whispersystems.whisperpush.database.table.ContactDirectoryTable;
 import org.whispersystems.whisperpush.WhisperPush;
+import org.whispersystems.whisperpush.util.BoundedConcurrentCache;
+import org.whispersystems.whisperpush.util.PhoneNumberCache;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.whispersystems.whisperpush.database.table.ContactDirectoryTable.NUMBER;
 import static org.whispersystems.whisperpush.database.table.ContactDirectoryTable.REGISTERED;
@@ -54,6 +61,18 @@ public class Directory {
   public static final int STATE_CONTACTS_MIXED = 3;
 
   private static final String TAG = Directory.class.getSimpleName();
+
+  // Phone.CONTACT_LAST_UPDATED_TIMESTAMP, which only exists from API 18 on
+  private static final String CONTACT_LAST_UPDATED_TIMESTAMP = "contact_last_updated_timestamp";
+
+  private static final int COMPACT_INDEX_THRESHOLD = 20000;
+
+  private static final int  NEGATIVE_CACHE_SIZE        = 1024;
+  private static final long DEFAULT_NEGATIVE_CACHE_TTL = 6 * 60 * 60 * 1000; // 6 hours
+
+  private static final String REPLACE_NUMBER = "INSERT OR REPLACE INTO " + TABLE_NAME + " (" +
+          NUMBER + ", " + REGISTERED + ", " + TIMESTAMP + ", " + RELAY + ", " + SUPPORTS_SMS +
+          ") VALUES (?, ?, ?, ?, ?)";
   private static volatile Directory instance;
 
   public static Directory getInstance(Context context) {
@@ -71,6 +90,26 @@ public class Directory {
   private final Context context;
   private final WhisperPushDbHelper databaseHelper;
 
+  /**
+   * In-memory copy of the directory table, loaded by {@link #warmUp} at startup (or by
+   * the first lookup, if that comes earlier) and kept current by every write below, so
+   * the per-message lookups never have to query SQLite.
+   * Directories larger than {@link #COMPACT_INDEX_THRESHOLD} are held in the
+   * {@link CompactDirectoryIndex} instead: a miss there is final, a hit is read from SQLite.
+   */
+  private volatile Map<String, Entry>    snapshot;
+  private volatile CompactDirectoryIndex compactIndex;
+  private volatile boolean               loaded;
+
+  /**
+   * Numbers the server didn't know when asked directly, with the time until which
+   * that answer is trusted. Not persisted; a directory sync settles them for good.
+   */
+  private final BoundedConcurrentCache<String, Long> notRegistered =
+          new BoundedConcurrentCache<String, Long>(NEGATIVE_CACHE_SIZE);
+
+  private volatile long notRegisteredTtl = DEFAULT_NEGATIVE_CACHE_TTL;
+
   private Directory(Context context) {
     this.context = context;
     this.databaseHelper = WhisperPushDbHelper.getInstance(context);
@@ -80,73 +119,95 @@ public class Directory {
     if (e164number == null || e164number.length() == 0) {
       return false;
     }
-    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME,
-            new String[] { REGISTERED }, NUMBER + " = ?", new String[] { e164number },
-            null, null, null);
-    try {
-      if (cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        throw new NotInDirectoryException();
-      }
-    } finally {
-      cursor.close();
+    Entry entry = getEntry(e164number);
+    if (entry == null) {
+      throw new NotInDirectoryException();
     }
+    return entry.registered;
+  }
+
+  /**
+   * @return the registration state of an E.164 number, or null if it isn't in the directory
+   */
+  Boolean getActiveState(String e164number) {
+    Entry entry = getEntry(e164number);
+    return entry != null ? entry.registered : null;
   }
 
   public int isAllActiveNumbers(Collection<String> numbers) {
       if (isEmpty(numbers)) {
           return STATE_ALL_CONTACTS_UNSECURE;
       }
-      List<String> formattedNumbers = new ArrayList<String>();
-      WhisperPush whisperPush = WhisperPush.getInstance(context);
 
-      boolean hasWrongNumbers = false;
-      for (String number : numbers) {
-          try {
-              String formattedNumber = whisperPush.formatNumber(number);
-              formattedNumbers.add(formattedNumber);
-          } catch (InvalidNumberException e) {
-              Log.i(TAG, "Can't format number " + number, e);
-              hasWrongNumbers = true;
+      Map<String, Boolean> states = getActiveStates(numbers);
+      int secureNumberCount = 0;
+      for (boolean active : states.values()) {
+          if (active) {
+              secureNumberCount++;
           }
       }
 
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where = REGISTERED + " = 1 AND " + NUMBER
-              + " IN ('" + TextUtils.join("','", formattedNumbers) + "')";
-      Cursor cursor = db.query(TABLE_NAME, new String[]{NUMBER}, where, null, null, null, null);
-
-      int secureNumberCount = cursor.getCount();
       if (secureNumberCount == 0) {
           return STATE_ALL_CONTACTS_UNSECURE;
-      } else if (hasWrongNumbers || secureNumberCount != numbers.size()) {
+      } else if (secureNumberCount != states.size()) {
           return STATE_CONTACTS_MIXED;
       } else {
           return STATE_ALL_CONTACTS_SECURE;
       }
   }
 
+  /**
+   * Looks up the registration state of every number in one pass over the in-memory
+   * directory. Numbers which can't be formatted or aren't in the directory map to false.
+   */
+  public Map<String, Boolean> getActiveStates(Collection<String> numbers) {
+      Map<String, Boolean> states = new HashMap<String, Boolean>(numbers.size());
+      WhisperPush whisperPush = WhisperPush.getInstance(context);
+
+      for (String number : numbers) {
+          boolean active = false;
+          try {
+              Entry entry = getEntry(whisperPush.formatNumber(number));
+              active = entry != null && entry.registered;
+          } catch (InvalidNumberException e) {
+              Log.i(TAG, "Can't format number " + number, e);
+          }
+          states.put(number, active);
+      }
+
+      return states;
+  }
+
   public void setActiveNumberAndRelay(String e164number, String relay) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     ContentValues values = new ContentValues();
     values.put(REGISTERED, 1);
     values.put(RELAY, relay);
-    db.update(TABLE_NAME, values, NUMBER + " = ?", new String[] { e164number });
+    if (db.update(TABLE_NAME, values, NUMBER + " = ?", new String[] { e164number }) > 0) {
+      Entry entry = getEntry(e164number);
+      putEntry(e164number, new Entry(true, entry != null && entry.sessionActive, relay));
+    }
   }
 
   public String getRelay(String e164number) {
-    SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    Cursor cursor = database.query(TABLE_NAME, null, NUMBER + " = ?", new String[] { e164number },
-            null, null, null);
+    if (e164number == null) {
+      return null;
+    }
+    Entry entry = getEntry(e164number);
+    return entry != null ? entry.relay : null;
+  }
+
+  private Entry readEntry(String e164number) {
+    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME,
+            new String[] { REGISTERED, SESSION_ACTIVE, RELAY },
+            NUMBER + " = ?", new String[] { e164number }, null, null, null);
     try {
-      if (cursor.moveToFirst()) {
-        return cursor.getString(cursor.getColumnIndexOrThrow(RELAY));
-      }
+      return cursor.moveToFirst()
+              ? new Entry(cursor.getInt(0) == 1, cursor.getInt(1) == 1, cursor.getString(2))
+              : null;
     } finally {
       cursor.close();
     }
-    return null;
   }
 
   public void setNumber(ContactTokenDetails token, boolean active) {
@@ -157,7 +218,38 @@ public class Directory {
     values.put(REGISTERED, active ? 1 : 0);
     values.put(SUPPORTS_SMS, /*token.isSupportsSms() ? 1 :*/ 0);
     values.put(TIMESTAMP, System.currentTimeMillis());
-    db.replace(TABLE_NAME, null, values);
+    if (db.replace(TABLE_NAME, null, values) != -1) {
+      // REPLACE recreates the row, which resets the session flag to its default
+      putEntry(token.getNumber(), new Entry(active, false, token.getRelay()));
+      notRegistered.remove(token.getNumber());
+    }
+  }
+
+  /**
+   * Remembers that the server has no account for {@code e164number}, so that callers
+   * can skip asking again until the configured time to live has passed.
+   */
+  public void setNotRegistered(String e164number) {
+    notRegistered.put(e164number, System.currentTimeMillis() + notRegisteredTtl);
+  }
+
+  public boolean isKnownNotRegistered(String e164number) {
+    Long expiry = notRegistered.get(e164number);
+    if (expiry == null) {
+      return false;
+    }
+    if (expiry <= System.currentTimeMillis()) {
+      notRegistered.remove(e164number);
+      return false;
+    }
+    return true;
+  }
+
+  public void setNotRegisteredTtl(long ttlMillis) {
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("ttlMillis < 0");
+    }
+    notRegisteredTtl = ttlMillis;
   }
 
   public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveNumbers) {
@@ -165,55 +257,65 @@ public class Directory {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.beginTransaction();
 
+    SQLiteStatement replace = null;
+
     try {
+      // one statement compiled once and rebound per row, rather than ContentValues + replace()
+      replace = db.compileStatement(REPLACE_NUMBER);
+
       for (ContactTokenDetails token : activeTokens) {
-        Log.w("Directory", "Adding active token: " + token.getNumber() + ", " + token.getToken());
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, token.getNumber());
-        values.put(REGISTERED, 1);
-        values.put(TIMESTAMP, timestamp);
-        values.put(RELAY, token.getRelay());
-        values.put(SUPPORTS_SMS, /*token.isSupportsSms() ? 1 :*/ 0);
-        db.replace(TABLE_NAME, null, values);
+        replace.bindString(1, token.getNumber());
+        replace.bindLong(2, 1);
+        replace.bindLong(3, timestamp);
+        bindStringOrNull(replace, 4, token.getRelay());
+        replace.bindLong(5, /*token.isSupportsSms() ? 1 :*/ 0);
+        replace.executeInsert();
       }
 
       for (String number : inactiveNumbers) {
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, number);
-        values.put(REGISTERED, 0);
-        values.put(TIMESTAMP, timestamp);
-        db.replace(TABLE_NAME, null, values);
+        replace.bindString(1, number);
+        replace.bindLong(2, 0);
+        replace.bindLong(3, timestamp);
+        replace.bindNull(4);
+        replace.bindNull(5);
+        replace.executeInsert();
       }
 
       db.setTransactionSuccessful();
     } finally {
+      if (replace != null) {
+        replace.close();
+      }
       db.endTransaction();
     }
+
+    Log.d(TAG, "Stored " + activeTokens.size() + " active and " + inactiveNumbers.size() + " inactive numbers");
+
+    for (ContactTokenDetails token : activeTokens) {
+      putEntry(token.getNumber(), new Entry(true, false, token.getRelay()));
+      notRegistered.remove(token.getNumber());
+    }
+    for (String number : inactiveNumbers) {
+      putEntry(number, new Entry(false, false, null));
+      notRegistered.remove(number);
+    }
+  }
+
+  private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
+    }
   }
 
   public Set<String> getPushEligibleContactNumbers(String localNumber) {
-    final Uri         uri     = Phone.CONTENT_URI;
     final Set<String> results = new HashSet<String>();
           Cursor      cursor  = null;
 
-    try {
-      cursor = context.getContentResolver().query(uri, new String[] {Phone.NUMBER}, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        final String rawNumber = cursor.getString(0);
-        if (rawNumber != null) {
-          try {
-            final String e164Number = PhoneNumberFormatter.formatNumber(rawNumber, localNumber);
-            results.add(e164Number);
-          } catch (InvalidNumberException e) {
-            Log.w("Directory", "Invalid number: " + rawNumber);
-          }
-        }
-      }
-
-      if (cursor != null)
-        cursor.close();
+    readContactNumbers(localNumber, null, null, results);
 
+    try {
       final SQLiteDatabase readableDb = databaseHelper.getReadableDatabase();
       if (readableDb != null) {
         cursor = readableDb.query(TABLE_NAME, new String[]{NUMBER},
@@ -231,21 +333,98 @@ public class Directory {
     }
   }
 
-  public boolean hasActiveSession(String e164Number) {
-    if (TextUtils.isEmpty(e164Number)) {
-      return false;
+  /**
+   * Returns the numbers of contacts which were changed after {@code since} and aren't
+   * in the directory yet. Before API 18 the contacts provider doesn't track changes, so
+   * all contacts are read, but still only unknown numbers are returned.
+   */
+  public Set<String> getNewContactNumbers(String localNumber, long since) {
+    final Set<String> results = new HashSet<String>();
+
+    if (Build.VERSION.SDK_INT >= 18) {
+      readContactNumbers(localNumber, CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+              new String[] { String.valueOf(since) }, results);
+    } else {
+      readContactNumbers(localNumber, null, null, results);
     }
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = db.query(ContactDirectoryTable.TABLE_NAME, new String[] { SESSION_ACTIVE },
-            NUMBER + " = ?", new String[] { e164Number }, null, null, null);
+
+    for (Iterator<String> iterator = results.iterator(); iterator.hasNext(); ) {
+      if (getEntry(iterator.next()) != null) {
+        iterator.remove();
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Counts the numbers which aren't in the directory yet.
+   */
+  public int countUnknownNumbers(Collection<String> numbers) {
+    int count = 0;
+    for (String number : numbers) {
+      if (getEntry(number) == null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the directory numbers which haven't been checked against the server since {@code before}.
+   */
+  public Set<String> getStaleNumbers(long before) {
+    final Set<String> results = new HashSet<String>();
+    Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] { NUMBER },
+            TIMESTAMP + " IS NULL OR " + TIMESTAMP + " < ?", new String[] { String.valueOf(before) },
+            null, null, null);
     try {
-      if (cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
+      while (cursor.moveToNext()) {
+        results.add(cursor.getString(0));
       }
     } finally {
       cursor.close();
     }
-    return false;
+    return results;
+  }
+
+  private void readContactNumbers(String localNumber, String selection, String[] selectionArgs,
+                                  Set<String> results)
+  {
+    final Uri    uri    = Phone.CONTENT_URI;
+          Cursor cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(uri, new String[] {Phone.NUMBER},
+              selection, selectionArgs, null);
+
+      if (cursor != null) {
+        PhoneNumberCache.getInstance().ensureCapacity(cursor.getCount());
+      }
+
+      while (cursor != null && cursor.moveToNext()) {
+        final String rawNumber = cursor.getString(0);
+        if (rawNumber != null) {
+          try {
+            final String e164Number = PhoneNumberCache.getInstance().formatNumber(rawNumber, localNumber);
+            results.add(e164Number);
+          } catch (InvalidNumberException e) {
+            Log.w("Directory", "Invalid number: " + rawNumber);
+          }
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public boolean hasActiveSession(String e164Number) {
+    if (TextUtils.isEmpty(e164Number)) {
+      return false;
+    }
+    Entry entry = getEntry(e164Number);
+    return entry != null && entry.sessionActive;
   }
 
   public void setActiveSession(String number, boolean hasActiveSession) {
@@ -254,7 +433,114 @@ public class Directory {
     values.put(SESSION_ACTIVE, hasActiveSession ? 1 : 0);
     String where = NUMBER + "=?";
     String[] whereArgs = { number };
-    db.update(ContactDirectoryTable.TABLE_NAME, values, where, whereArgs);
+    if (db.update(ContactDirectoryTable.TABLE_NAME, values, where, whereArgs) > 0) {
+      Entry entry = getEntry(number);
+      if (entry != null) {
+        putEntry(number, new Entry(entry.registered, hasActiveSession, entry.relay));
+      }
+    }
+  }
+
+  private Entry getEntry(String e164number) {
+    ensureLoaded();
+
+    CompactDirectoryIndex index = compactIndex;
+    if (index != null) {
+      // a hit may be another number's hash, which would make an SMS-only contact look
+      // registered, so only a miss is answered from memory
+      return index.contains(e164number) ? readEntry(e164number) : null;
+    }
+
+    return snapshot.get(e164number);
+  }
+
+  private void putEntry(String e164number, Entry entry) {
+    ensureLoaded();
+
+    CompactDirectoryIndex index = compactIndex;
+    if (index != null) {
+      index.put(e164number, (entry.registered ? CompactDirectoryIndex.REGISTERED : 0) |
+                            (entry.sessionActive ? CompactDirectoryIndex.SESSION_ACTIVE : 0));
+    } else {
+      snapshot.put(e164number, entry);
+    }
+  }
+
+  /**
+   * Loads the in-memory directory ahead of the first lookup, which may well come from
+   * the UI thread. Call it off the main thread; lookups still load it themselves if
+   * they come first.
+   */
+  public void warmUp() {
+    ensureLoaded();
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    synchronized (this) {
+      if (!loaded) {
+        SQLiteDatabase db = databaseHelper.getReadableDatabase();
+        long count = DatabaseUtils.queryNumEntries(db, TABLE_NAME);
+
+        if (count > COMPACT_INDEX_THRESHOLD) {
+          compactIndex = loadCompactIndex(db, (int) count);
+        } else {
+          snapshot = loadSnapshot(db, (int) count);
+        }
+        loaded = true;
+      }
+    }
+  }
+
+  private Map<String, Entry> loadSnapshot(SQLiteDatabase db, int count) {
+    Cursor cursor = db.query(TABLE_NAME, new String[] { NUMBER, REGISTERED, SESSION_ACTIVE, RELAY },
+            null, null, null, null, null);
+    try {
+      Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>(Math.max(16, count * 2));
+      while (cursor.moveToNext()) {
+        String number = cursor.getString(0);
+        if (number != null) {
+          entries.put(number, new Entry(cursor.getInt(1) == 1, cursor.getInt(2) == 1, cursor.getString(3)));
+        }
+      }
+      Log.d(TAG, "Loaded " + entries.size() + " directory entries");
+      return entries;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private CompactDirectoryIndex loadCompactIndex(SQLiteDatabase db, int count) {
+    Cursor cursor = db.query(TABLE_NAME, new String[] { NUMBER, REGISTERED, SESSION_ACTIVE },
+            null, null, null, null, null);
+    try {
+      CompactDirectoryIndex index = new CompactDirectoryIndex(count);
+      while (cursor.moveToNext()) {
+        String number = cursor.getString(0);
+        if (number != null) {
+          index.put(number, (cursor.getInt(1) == 1 ? CompactDirectoryIndex.REGISTERED : 0) |
+                            (cursor.getInt(2) == 1 ? CompactDirectoryIndex.SESSION_ACTIVE : 0));
+        }
+      }
+      Log.d(TAG, "Loaded " + index.size() + " directory entries into the compact index");
+      return index;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static final class Entry {
+    final boolean registered;
+    final boolean sessionActive;
+    final String  relay;
+
+    Entry(boolean registered, boolean sessionActive, String relay) {
+      this.registered    = registered;
+      this.sessionActive = sessionActive;
+      this.relay         = relay;
+    }
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.directory;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counts of one directory sync, per phase. Discovery chunks run in
+ * parallel, so their server and write times are summed over all chunks and can
+ * exceed the wall time of the discovery phase.
+ */
+public class DirectorySyncReport {
+
+    public final long    startTime = System.currentTimeMillis();
+    public final boolean fullSync;
+    public final boolean dryRun;
+
+    public volatile boolean success;
+    public volatile int     eligibleNumbers;
+    public volatile int     newContactNumbers;
+
+    public volatile long enumerationNanos;
+    public volatile long formattingNanos;
+    public volatile long formatLookups;
+    public volatile long formatMisses;
+    public volatile long discoveryNanos;
+    public volatile long totalNanos;
+
+    final AtomicLong    serverNanos        = new AtomicLong();
+    final AtomicLong    writeNanos         = new AtomicLong();
+    final AtomicInteger chunks             = new AtomicInteger();
+    final AtomicInteger failedChunks       = new AtomicInteger();
+    final AtomicInteger registered         = new AtomicInteger();
+    final AtomicInteger added              = new AtomicInteger();
+    final AtomicInteger becameRegistered   = new AtomicInteger();
+    final AtomicInteger becameUnregistered = new AtomicInteger();
+
+    public DirectorySyncReport(boolean fullSync, boolean dryRun) {
+        this.fullSync = fullSync;
+        this.dryRun   = dryRun;
+    }
+
+    /**
+     * Records how a discovered number differs from what the directory held before.
+     */
+    void recordDelta(Boolean previous, boolean active) {
+        if (active) {
+            registered.incrementAndGet();
+        }
+        if (previous == null) {
+            added.incrementAndGet();
+        }
+        if (active && !Boolean.TRUE.equals(previous)) {
+            becameRegistered.incrementAndGet();
+        } else if (!active && Boolean.TRUE.equals(previous)) {
+            becameUnregistered.incrementAndGet();
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Directory sync at " + startTime + (fullSync ? " (full" : " (incremental") +
+                       (dryRun ? ", dry run)" : ")") + (success ? " succeeded" : " failed"));
+        writer.println("  numbers: " + eligibleNumbers + " eligible, " + newContactNumbers + " new contacts, " +
+                       registered.get() + " registered");
+        writer.println("  delta: " + added.get() + " added, " + becameRegistered.get() + " became registered, " +
+                       becameUnregistered.get() + " became unregistered");
+        writer.println("  enumeration: " + millis(enumerationNanos) + "ms");
+        writer.println("  formatting: " + formatSummary());
+        writer.println("  discovery: " + millis(discoveryNanos) + "ms wall, " + chunks.get() + " chunks, " +
+                       failedChunks.get() + " failed");
+        writer.println("    server: " + millis(serverNanos.get()) + "ms, write: " + millis(writeNanos.get()) + "ms");
+        writer.println("  total: " + millis(totalNanos) + "ms");
+    }
+
+    /**
+     * Number formatting cost, cache hit rate, and what the hits would have cost at the
+     * average price of a miss.
+     */
+    public String formatSummary() {
+        long hits       = formatLookups - formatMisses;
+        long hitPercent = formatLookups == 0 ? 0 : 100 * hits / formatLookups;
+        long savedNanos = formatMisses == 0 ? 0 : hits * formattingNanos / formatMisses;
+
+        return millis(formattingNanos) + "ms, " + formatLookups + " lookups, " + formatMisses +
+               " misses (" + hitPercent + "% cached, ~" + millis(savedNanos) + "ms saved)";
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -19,6 +19,7 @@ package org.whispersystems.whisperpush.gcm;
 
 import org.whispersystems.whisperpush.WhisperPush;
 import org.whispersystems.whisperpush.service.DirectoryRefreshListener;
+import org.whispersystems.whisperpush.service.MessagePipeManager;
 import org.whispersystems.whisperpush.service.SendReceiveService;
 import org.whispersystems.whisperpush.util.WhisperPreferences;
 
@@ -76,6 +77,7 @@ public class GcmReceiver extends WakefulBroadcastReceiver {
   }
 
   private void handleReceivedNotification(Context context) {
+    MessagePipeManager.getInstance(context).onPushWakeup();
     Intent serviceIntent = new Intent(context, SendReceiveService.class);
     serviceIntent.setAction(SendReceiveService.RCV_NOTIFICATION);
     startWakefulService(context, serviceIntent);
@@ -24,16 +24,24 @@ import org.whispersystems.whisperpush.database.DatabaseFactory;
 
 public class IdentityLoader extends CursorLoader {
 
-    private final Context context;
+    private final Context                  context;
+    private final ForceLoadContentObserver observer;
 
     public IdentityLoader(Context context) {
         super(context);
         this.context      = context.getApplicationContext();
+        this.observer     = new ForceLoadContentObserver();
     }
 
     @Override
     public Cursor loadInBackground() {
-        return DatabaseFactory.getIdentityDatabase(context).getIdentities();
+        Cursor cursor = DatabaseFactory.getIdentityDatabase(context).getIdentities();
+        if (cursor != null) {
+            // the list's adapter doesn't requery, so reload whenever an identity changes
+            cursor.getCount();
+            cursor.registerContentObserver(observer);
+        }
+        return cursor;
     }
 
 }
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.service;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.util.Log;
+
+import org.whispersystems.whisperpush.util.WhisperPreferences;
+
+/**
+ * Watches the address book and requests an incremental directory sync once
+ * a burst of contact changes has settled.
+ */
+public class ContactsChangeObserver extends ContentObserver {
+
+    private static final String TAG = ContactsChangeObserver.class.getSimpleName();
+
+    private static final long SETTLE_DELAY = 60 * 1000;
+
+    private static ContactsChangeObserver instance;
+
+    public static synchronized void register(Context context) {
+        if (instance == null) {
+            instance = new ContactsChangeObserver(context.getApplicationContext(),
+                    new Handler(Looper.getMainLooper()));
+            context.getContentResolver().registerContentObserver(Phone.CONTENT_URI, true, instance);
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+
+    private final Runnable syncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (WhisperPreferences.isRegistered(context)) {
+                Log.d(TAG, "Contacts changed, requesting incremental sync");
+                DirectoryRefreshService.requestIncrementalSync(context);
+            }
+        }
+    };
+
+    private ContactsChangeObserver(Context context, Handler handler) {
+        super(handler);
+        this.context = context;
+        this.handler = handler;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        handler.removeCallbacks(syncRunnable);
+        handler.postDelayed(syncRunnable, SETTLE_DELAY);
+    }
+}
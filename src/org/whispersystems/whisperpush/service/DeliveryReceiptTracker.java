@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.service;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.util.Log;
+
+import org.whispersystems.whisperpush.WhisperPush;
+import org.whispersystems.whisperpush.api.DeliveryReceipt;
+import org.whispersystems.whisperpush.api.MessagingBridge;
+import org.whispersystems.whisperpush.api.ReceiptMessagingBridge;
+import org.whispersystems.whisperpush.util.Util;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches delivery receipts to sent messages by (destination, timestamp) and fires the
+ * delivery intents the sender registered for them. Only the most recent messages are
+ * remembered, and only until the process dies; receipts for others are passed to a
+ * {@link ReceiptMessagingBridge} only.
+ */
+public class DeliveryReceiptTracker {
+
+    private static final String TAG = DeliveryReceiptTracker.class.getSimpleName();
+
+    private static final int MAX_TRACKED_MESSAGES = 1024;
+
+    private static volatile DeliveryReceiptTracker sInstance;
+
+    public static DeliveryReceiptTracker getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (DeliveryReceiptTracker.class) {
+                if (sInstance == null) {
+                    sInstance = new DeliveryReceiptTracker(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private final Context context;
+    // guarded by itself; the oldest message is forgotten once too many are tracked
+    private final Map<String, List<PendingIntent>> deliveryIntents =
+            new LinkedHashMap<String, List<PendingIntent>>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<PendingIntent>> eldest) {
+                    return size() > MAX_TRACKED_MESSAGES;
+                }
+            };
+
+    private DeliveryReceiptTracker(Context context) {
+        this.context = context;
+    }
+
+    public void track(String destination, long timestamp, List<PendingIntent> intents) {
+        if (!Util.isEmpty(intents)) {
+            synchronized (deliveryIntents) {
+                deliveryIntents.put(getKey(destination, timestamp), intents);
+            }
+        }
+    }
+
+    public void onReceipts(List<DeliveryReceipt> receipts) {
+        int matched = 0;
+        for (DeliveryReceipt receipt : receipts) {
+            // taken out at once, as another device of the recipient may confirm the same message again
+            List<PendingIntent> intents;
+            synchronized (deliveryIntents) {
+                intents = deliveryIntents.remove(getKey(receipt.getDestination(), receipt.getTimestamp()));
+            }
+            if (intents == null) {
+                continue;
+            }
+            matched++;
+
+            for (PendingIntent intent : intents) {
+                try {
+                    intent.send(Activity.RESULT_OK);
+                } catch (PendingIntent.CanceledException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        }
+
+        MessagingBridge messagingBridge = WhisperPush.getInstance(context).getMessagingBridge();
+        if (messagingBridge instanceof ReceiptMessagingBridge) {
+            ((ReceiptMessagingBridge) messagingBridge).onDeliveryReceipts(receipts);
+        }
+
+        Log.d(TAG, "Handled " + receipts.size() + " receipts, " + matched + " matched a sent message");
+    }
+
+    private static String getKey(String destination, long timestamp) {
+        return destination + ":" + timestamp;
+    }
+}
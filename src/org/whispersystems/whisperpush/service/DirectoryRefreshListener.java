@@ -21,20 +21,41 @@ import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
 import android.util.Log;
 
 import org.whispersystems.whisperpush.util.StatsUtils;
 import org.whispersystems.whisperpush.util.WhisperPreferences;
 
+import java.util.Random;
+
 public class DirectoryRefreshListener extends BroadcastReceiver {
 
-    private static final String REFRESH_EVENT = "org.whispersystems.whisperpush.DIRECTORY_REFRESH";
-    private static final String BOOT_EVENT    = Intent.ACTION_BOOT_COMPLETED;
+    private static final String REFRESH_EVENT    = "org.whispersystems.whisperpush.DIRECTORY_REFRESH";
+    private static final String BOOT_EVENT       = Intent.ACTION_BOOT_COMPLETED;
+
+    private static final String TAG              = "DirectoryRefreshService";
+
+    private static final long   HOUR             = 60 * 60 * 1000;
+    private static final long   DAY              = 24 * HOUR; // 24 hours.
+    // we currently rely on MAX_DIR_INTERVAL being less than STAT_INTERVAL
+    private static final long   DIR_INTERVAL     = DAY;
+    private static final long   MIN_DIR_INTERVAL = DAY / 2;
+    private static final long   MAX_DIR_INTERVAL = DAY * 4;
+    private static final long   STAT_INTERVAL    = DAY * 7;
+
+    private static final long   JITTER           = HOUR;
+    private static final long   DEFER_INTERVAL   = HOUR;
+    private static final long   MAX_DEFERRAL     = DAY / 2;
+    private static final long   RETRY_BACKOFF    = 15 * 60 * 1000;
+
+    private static final Random random = new Random();
 
-    private static final long   DAY           = 24 * 60 * 60 * 1000; // 24 hours.
-    // we currently rely on DIR_INTERVAL being less than STAT_INTERVAL
-    private static final long   DIR_INTERVAL  = DAY;
-    private static final long   STAT_INTERVAL = DAY * 7;
+    // the alarm time armed by this process, lets schedule() skip all work until it passes
+    private static volatile long scheduledTime;
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -64,26 +85,121 @@ public class DirectoryRefreshListener extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Makes sure a refresh alarm is armed, and kicks off a sync when one is due and
+     * {@link #isGoodTimeToSync} agrees. Called on every push and SMS, so once this
+     * process has armed a future alarm it returns without touching the alarm or preferences.
+     */
     public static void schedule(Context context) {
         if (!WhisperPreferences.isRegistered(context)) return;
 
-        AlarmManager      alarmManager  = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
-        Intent            intent        = new Intent(DirectoryRefreshListener.REFRESH_EVENT);
-        PendingIntent     pendingIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
-        long              time          = WhisperPreferences.getDirectoryRefreshTime(context);
+        long now = System.currentTimeMillis();
+        if (scheduledTime > now) return;
+
+        synchronized (DirectoryRefreshListener.class) {
+            if (scheduledTime > now) return;
 
-        if (time <= System.currentTimeMillis()) {
-            if (time != 0) {
-                DirectoryRefreshService.requestSync(context, false);
+            long time = WhisperPreferences.getDirectoryRefreshTime(context);
+
+            if (time == 0) {
+                time = now + getRefreshInterval(context) + jitter(JITTER);
+            } else if (time <= now) {
+                // deferring moves the alarm, so how long the refresh is overdue is kept apart
+                long dueTime = WhisperPreferences.getDirectoryRefreshDueTime(context);
+                if (dueTime == 0) {
+                    dueTime = time;
+                }
+
+                if (isGoodTimeToSync(context, now - dueTime)) {
+                    DirectoryRefreshService.requestIncrementalSync(context);
+                    WhisperPreferences.setDirectoryRefreshDueTime(context, 0);
+                    // onSyncFinished() replaces this unless the sync dies along with the process
+                    time = now + getRefreshInterval(context) + jitter(JITTER);
+                } else {
+                    WhisperPreferences.setDirectoryRefreshDueTime(context, dueTime);
+                    time = now + DEFER_INTERVAL + jitter(DEFER_INTERVAL / 4);
+                }
             }
-            time = System.currentTimeMillis() + DIR_INTERVAL;
+
+            setAlarm(context, time);
         }
+    }
+
+    /**
+     * Arms the next refresh after a directory sync, backing off after failures. The
+     * interval shrinks while syncs keep finding new contact numbers and grows while
+     * the address book stays unchanged.
+     */
+    static void onSyncFinished(Context context, boolean success, int newNumbers) {
+        if (!WhisperPreferences.isRegistered(context)) return;
+
+        synchronized (DirectoryRefreshListener.class) {
+            long now      = System.currentTimeMillis();
+            long interval = getRefreshInterval(context);
+            long time;
+
+            if (success) {
+                interval = newNumbers > 0 ? Math.max(MIN_DIR_INTERVAL, interval / 2)
+                                          : Math.min(MAX_DIR_INTERVAL, interval * 2);
+                WhisperPreferences.setDirectoryRefreshInterval(context, interval);
+                WhisperPreferences.setDirectoryRefreshFailures(context, 0);
+                time = now + interval + jitter(JITTER);
+            } else {
+                int failures = WhisperPreferences.getDirectoryRefreshFailures(context) + 1;
+                WhisperPreferences.setDirectoryRefreshFailures(context, failures);
+                long backoff = Math.min(interval, RETRY_BACKOFF << Math.min(failures - 1, 10));
+                time = now + backoff + jitter(backoff / 4);
+            }
+
+            WhisperPreferences.setDirectoryRefreshDueTime(context, 0);
+            Log.w(TAG, "Directory sync " + (success ? "succeeded" : "failed") +
+                       ", next refresh in " + ((time - now) / 60000) + " minutes");
+            setAlarm(context, time);
+        }
+    }
+
+    /**
+     * A due refresh waits for an unmetered network or a charger, but not
+     * longer than {@link #MAX_DEFERRAL}.
+     */
+    private static boolean isGoodTimeToSync(Context context, long overdue) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return false;
+        }
+
+        return !connectivityManager.isActiveNetworkMetered() || isCharging(context) || overdue >= MAX_DEFERRAL;
+    }
+
+    private static boolean isCharging(Context context) {
+        // sticky broadcast, no receiver is actually registered
+        Intent battery = context.getApplicationContext()
+                .registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static long getRefreshInterval(Context context) {
+        return WhisperPreferences.getDirectoryRefreshInterval(context, DIR_INTERVAL);
+    }
+
+    private static long jitter(long bound) {
+        return (long) (random.nextDouble() * bound);
+    }
+
+    private static void setAlarm(Context context, long time) {
+        AlarmManager      alarmManager  = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        Intent            intent        = new Intent(DirectoryRefreshListener.REFRESH_EVENT);
+        PendingIntent     pendingIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
 
-        Log.w("DirectoryRefreshService", "Scheduling for: " + time);
+        Log.w(TAG, "Scheduling for: " + time);
 
         alarmManager.cancel(pendingIntent);
         alarmManager.set(AlarmManager.RTC, time, pendingIntent);
 
         WhisperPreferences.setDirectoryRefreshTime(context, time);
+        scheduledTime = time;
     }
 }
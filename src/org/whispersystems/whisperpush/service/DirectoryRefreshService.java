@@ -25,13 +25,15 @@ import android.os.PowerManager;
 import android.util.Log;
 import android.widget.Toast;
 
-import org.whispersystems.textsecure.api.TextSecureAccountManager;
-import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.whisperpush.WhisperPush;
+import org.whispersystems.whisperpush.directory.ContactDiscovery;
 import org.whispersystems.whisperpush.directory.Directory;
-import org.whispersystems.whisperpush.util.WhisperServiceFactory;
+import org.whispersystems.whisperpush.directory.DirectorySyncReport;
+import org.whispersystems.whisperpush.util.PhoneNumberCache;
+import org.whispersystems.whisperpush.util.WhisperPreferences;
 
-import java.util.List;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Set;
 
 public class DirectoryRefreshService extends IntentService {
@@ -40,9 +42,17 @@ public class DirectoryRefreshService extends IntentService {
 
     private static final String EXTRA_ACTION = "action";
     private static final String EXTRA_ALLOW_SHOW_TOAST = "showResultToast";
+    private static final String EXTRA_INCREMENTAL = "incremental";
+    private static final String EXTRA_DRY_RUN = "dryRun";
 
     private static final String ACTION_SYNC = "SYNC";
 
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    // numbers are asked again once their last check is older than this
+    private static final long STALE_INTERVAL = 14 * DAY;
+    // everything, including contacts we may have missed changes of, is asked this often
+    private static final long FULL_SYNC_INTERVAL = 30 * DAY;
+
     public static Intent createSyncIntent(Context context) {
         return new Intent(context, DirectoryRefreshService.class)
                 .putExtra(EXTRA_ACTION, ACTION_SYNC);
@@ -53,6 +63,23 @@ public class DirectoryRefreshService extends IntentService {
                 .putExtra(EXTRA_ALLOW_SHOW_TOAST, allowShowToast));
     }
 
+    /**
+     * Only asks the server about new or stale numbers, unless a full sync is due.
+     */
+    public static void requestIncrementalSync(Context context) {
+        context.startService(createSyncIntent(context)
+                .putExtra(EXTRA_INCREMENTAL, true));
+    }
+
+    /**
+     * Asks the server about all numbers and records what would change in the directory,
+     * without writing anything. The result shows up in {@link #dump(Context, PrintWriter)}.
+     */
+    public static void requestDryRun(Context context) {
+        context.startService(createSyncIntent(context)
+                .putExtra(EXTRA_DRY_RUN, true));
+    }
+
     public DirectoryRefreshService() {
         super("secure-contacts-sync");
     }
@@ -65,16 +92,20 @@ public class DirectoryRefreshService extends IntentService {
         }
         if (ACTION_SYNC.equals(action)) {
             boolean allowShowToast = intent.getBooleanExtra(EXTRA_ALLOW_SHOW_TOAST, false);
-            handleRefreshAction(allowShowToast);
+            boolean incremental = intent.getBooleanExtra(EXTRA_INCREMENTAL, false);
+            boolean dryRun = intent.getBooleanExtra(EXTRA_DRY_RUN, false);
+            handleRefreshAction(allowShowToast, incremental, dryRun);
         }
     }
 
-    private void handleRefreshAction(boolean allowShowToast) {
+    private void handleRefreshAction(boolean allowShowToast, boolean incremental, boolean dryRun) {
         final Context context = this;
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Directory Refresh");
         wakeLock.acquire();
         Handler mainHandler = new Handler(Looper.getMainLooper());
+        long start = System.nanoTime();
+        DirectorySyncReport report = null;
         try {
             Log.w(TAG, "Refreshing directory...");
             WhisperPush whisperPush = WhisperPush.getInstance(this);
@@ -84,16 +115,51 @@ public class DirectoryRefreshService extends IntentService {
             }
             Directory directory = whisperPush.getContactDirectory();
             String localNumber = whisperPush.getLocalNumber();
-            TextSecureAccountManager manager = WhisperServiceFactory.createAccountManager(context);
 
-            Set<String> eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
-            List<ContactTokenDetails> activeTokens = manager.getContacts(eligibleContactNumbers);
+            // taken before reading contacts, so changes made meanwhile are picked up next time
+            long syncTime = System.currentTimeMillis();
+            boolean fullSync = !incremental ||
+                    syncTime - WhisperPreferences.getDirectoryFullSyncTime(context) >= FULL_SYNC_INTERVAL;
+
+            report = new DirectorySyncReport(fullSync, dryRun);
+
+            PhoneNumberCache numberCache = PhoneNumberCache.getInstance();
+            long formatHits = numberCache.getHitCount();
+            long formatMisses = numberCache.getMissCount();
+            long formatNanos = numberCache.getMissNanos();
+            long enumerationStart = System.nanoTime();
 
-            for (ContactTokenDetails activeToken : activeTokens) {
-                eligibleContactNumbers.remove(activeToken.getNumber());
+            // a full sync reads all contacts anyway, so it doesn't enumerate the changed ones again
+            Set<String> eligibleContactNumbers;
+            if (fullSync) {
+                eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
+                report.newContactNumbers = directory.countUnknownNumbers(eligibleContactNumbers);
+            } else {
+                eligibleContactNumbers = directory.getNewContactNumbers(localNumber,
+                        WhisperPreferences.getDirectorySyncTime(context));
+                report.newContactNumbers = eligibleContactNumbers.size();
+                eligibleContactNumbers.addAll(directory.getStaleNumbers(syncTime - STALE_INTERVAL));
             }
-            directory.setNumbers(activeTokens, eligibleContactNumbers);
-            Log.w(TAG, "Directory refresh complete...");
+            report.eligibleNumbers = eligibleContactNumbers.size();
+            report.formattingNanos = numberCache.getMissNanos() - formatNanos;
+            report.enumerationNanos = System.nanoTime() - enumerationStart - report.formattingNanos;
+            report.formatMisses = numberCache.getMissCount() - formatMisses;
+            report.formatLookups = numberCache.getHitCount() - formatHits + report.formatMisses;
+            Log.d(TAG, "Number formatting: " + report.formatSummary());
+
+            long discoveryStart = System.nanoTime();
+            new ContactDiscovery(context, directory).discover(eligibleContactNumbers, report);
+            report.discoveryNanos = System.nanoTime() - discoveryStart;
+
+            if (!dryRun) {
+                WhisperPreferences.setDirectorySyncTime(context, syncTime);
+                if (fullSync) {
+                    WhisperPreferences.setDirectoryFullSyncTime(context, syncTime);
+                }
+            }
+            Log.w(TAG, "Directory refresh complete (" + (fullSync ? "full" : "incremental") +
+                    (dryRun ? ", dry run" : "") + ")...");
+            report.success = true;
             if (allowShowToast) {
                 mainHandler.post(new Runnable() {
                     @Override
@@ -113,8 +179,31 @@ public class DirectoryRefreshService extends IntentService {
                 });
             }
         } finally {
+            if (report != null) {
+                report.totalNanos = System.nanoTime() - start;
+                // kept past this short-lived service, for dump(Context, PrintWriter)
+                WhisperPreferences.setDirectorySyncReport(context, report.toString());
+                Log.i(TAG, report.toString());
+                if (!dryRun) {
+                    DirectoryRefreshListener.onSyncFinished(context, report.success, report.newContactNumbers);
+                }
+            }
             wakeLock.release();
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dump(this, writer);
+    }
+
+    /**
+     * Prints the report of the last directory sync, which outlives both this service,
+     * stopped as soon as a sync is done, and the process.
+     */
+    public static void dump(Context context, PrintWriter writer) {
+        String report = WhisperPreferences.getDirectorySyncReport(context);
+        writer.print(report != null ? report : "No directory sync yet\n");
+    }
+
 }
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers which envelopes have been handled, keyed by (source, device, timestamp), so
+ * that an envelope delivered twice isn't decrypted twice. The most recent keys are kept
+ * exactly in a ring buffer; older ones in a bloom filter that survives restarts.
+ *
+ * The filter has two generations, the older one dropped once the newer one is full.
+ * A false positive drops a genuine message without decrypting it, so with both
+ * generations full, (1 - e^(-kn/m))^k per generation puts it at below one in a
+ * hundred million. Hits which only the filter knows are counted and logged.
+ */
+public class EnvelopeDeduplicator {
+
+    private static final String TAG = EnvelopeDeduplicator.class.getSimpleName();
+
+    private static final String FILE_NAME = "envelope_filter";
+    private static final int    VERSION   = 2;
+
+    private static final int  RECENT_SIZE         = 1024;
+    private static final int  FILTER_BITS         = 1 << 18;
+    private static final int  FILTER_HASHES       = 10;
+    private static final int  GENERATION_CAPACITY = 4096;
+    private static final long FLUSH_INTERVAL      = 30 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File   file;
+    private final long[] recent = new long[RECENT_SIZE];
+
+    private int     recentIndex;
+    private long[]  current;
+    private long[]  previous;
+    private int     currentCount;
+    private boolean dirty;
+    private long    lastFlushTime;
+    private int     filterHits;
+
+    public EnvelopeDeduplicator(Context context) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Records {@code envelope} as handled.
+     *
+     * @return true if it had been recorded before
+     */
+    public synchronized boolean isDuplicate(TextSecureEnvelope envelope) {
+        ensureLoaded();
+
+        byte[] hash = hash(envelope);
+        long   key  = toLong(hash, 0);
+        int    h1   = (int) toLong(hash, 8);
+        int    h2   = (int) (toLong(hash, 8) >>> 32);
+
+        for (long recentKey : recent) {
+            if (recentKey == key) {
+                return true;
+            }
+        }
+
+        recent[recentIndex] = key;
+        recentIndex         = (recentIndex + 1) % RECENT_SIZE;
+
+        if (mightContain(current, h1, h2) || mightContain(previous, h1, h2)) {
+            // either a duplicate older than the ring, or a false positive
+            filterHits++;
+            Log.w(TAG, "Envelope only known to the bloom filter (" + filterHits + " so far)");
+            return true;
+        }
+
+        add(current, h1, h2);
+        dirty = true;
+
+        if (++currentCount >= GENERATION_CAPACITY) {
+            previous     = current;
+            current      = new long[FILTER_BITS / 64];
+            currentCount = 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return how many envelopes were dropped on a bloom filter hit alone since process start
+     */
+    public synchronized int getFilterHitCount() {
+        return filterHits;
+    }
+
+    /**
+     * Writes the filter to disk, if anything has been recorded since it was last written
+     * and that was more than {@link #FLUSH_INTERVAL} ago. Keys recorded meanwhile only
+     * live in memory until a later call; losing them lets a redelivery through, nothing more.
+     * Only call this once every envelope recorded so far has been stored: a saved key for
+     * one a crash still loses would drop its replay as a duplicate.
+     */
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        if (!dirty || now - lastFlushTime < FLUSH_INTERVAL) {
+            return;
+        }
+        lastFlushTime = now;
+
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(currentCount);
+                for (long word : current)  out.writeLong(word);
+                for (long word : previous) out.writeLong(word);
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Rename failed");
+            }
+            dirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't save envelope filter", e);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (current != null) {
+            return;
+        }
+
+        current  = new long[FILTER_BITS / 64];
+        previous = new long[FILTER_BITS / 64];
+
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return;
+                }
+                currentCount = in.readInt();
+                for (int i = 0; i < current.length; i++)  current[i]  = in.readLong();
+                for (int i = 0; i < previous.length; i++) previous[i] = in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't load envelope filter, starting empty", e);
+            current      = new long[FILTER_BITS / 64];
+            previous     = new long[FILTER_BITS / 64];
+            currentCount = 0;
+        }
+    }
+
+    // Kirsch-Mitzenmacher: the i-th bit index is h1 + i * h2
+    private static boolean mightContain(long[] filter, int h1, int h2) {
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % FILTER_BITS;
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void add(long[] filter, int h1, int h2) {
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % FILTER_BITS;
+            filter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static byte[] hash(TextSecureEnvelope envelope) {
+        String key = envelope.getSource() + ":" + envelope.getSourceDevice() + ":" + envelope.getTimestamp();
+        try {
+            return MessageDigest.getInstance("SHA1").digest(key.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.TextSecureMessagePipe;
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+import org.whispersystems.whisperpush.WhisperPush;
+import org.whispersystems.whisperpush.util.WhisperPreferences;
+import org.whispersystems.whisperpush.util.WhisperServiceFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps a websocket message pipe to the server open while it's worth it: while the host
+ * app is in the foreground, and for a short while after every GCM wakeup, when more
+ * messages of the same burst are likely to follow. Envelopes then arrive without a
+ * wakeup and an HTTPS round trip each. Otherwise GCM plus
+ * {@link MessageReceiver#handleNotification} remain the way messages are received.
+ *
+ * Off unless enabled with {@link WhisperPreferences#setMessagePipeEnabled}.
+ */
+public class MessagePipeManager implements Runnable {
+
+    private static final String TAG = MessagePipeManager.class.getSimpleName();
+
+    private static final long LINGER_TIME  = 60 * 1000;
+    private static final long READ_TIMEOUT = 10; // seconds
+    private static final long MIN_BACKOFF  = 1000;
+    private static final long MAX_BACKOFF  = 60 * 1000;
+
+    private static volatile MessagePipeManager sInstance;
+
+    public static MessagePipeManager getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (MessagePipeManager.class) {
+                if (sInstance == null) {
+                    sInstance = new MessagePipeManager(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private final Context context;
+
+    private boolean foreground;
+    private long    lingerUntil;
+    private Thread  thread;
+
+    private MessagePipeManager(Context context) {
+        this.context = context;
+    }
+
+    public synchronized void setForeground(boolean foreground) {
+        this.foreground = foreground;
+        update();
+    }
+
+    /**
+     * Called when GCM signals new messages; keeps the pipe open for the rest of the burst.
+     */
+    public synchronized void onPushWakeup() {
+        lingerUntil = System.currentTimeMillis() + LINGER_TIME;
+        update();
+    }
+
+    private synchronized void update() {
+        if (isNeeded() && thread == null) {
+            thread = new Thread(this, "message-pipe");
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean isNeeded() {
+        return WhisperPreferences.isMessagePipeEnabled(context)           &&
+               WhisperPush.getInstance(context).isSecureMessagingActive() &&
+               (foreground || System.currentTimeMillis() < lingerUntil);
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF;
+
+        while (isNeeded()) {
+            TextSecureMessagePipe pipe = null;
+            try {
+                pipe = WhisperServiceFactory.createMessageReceiver(context).createMessagePipe();
+                Log.d(TAG, "Message pipe connected");
+
+                final MessageReceiver receiver = MessageReceiver.getInstance(context);
+                // journaled before the pipe acknowledges the envelope to the server
+                TextSecureMessagePipe.MessagePipeCallback callback = new TextSecureMessagePipe.MessagePipeCallback() {
+                    @Override
+                    public void onMessage(TextSecureEnvelope envelope) {
+                        receiver.journalPipeEnvelope(envelope);
+                    }
+                };
+
+                while (isNeeded()) {
+                    try {
+                        TextSecureEnvelope envelope = pipe.read(READ_TIMEOUT, TimeUnit.SECONDS, callback);
+                        backoff = MIN_BACKOFF;
+                        receiver.handlePipeEnvelope(envelope);
+                    } catch (TimeoutException e) {
+                        // nothing to read, check whether the pipe is still needed
+                    }
+                }
+            } catch (Exception e) {
+                // a dropped connection, or an envelope that couldn't be read
+                Log.w(TAG, "Message pipe failed, reconnecting in " + backoff + "ms", e);
+                sleep(backoff);
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            } finally {
+                if (pipe != null) {
+                    pipe.shutdown();
+                }
+            }
+        }
+
+        synchronized (this) {
+            thread = null;
+            // a request may have come in after the last isNeeded() check
+            update();
+        }
+        Log.d(TAG, "Message pipe closed");
+    }
+
+    private synchronized void sleep(long millis) {
+        try {
+            // woken early by setForeground() or onPushWakeup()
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -18,11 +18,17 @@ package org.whispersystems.whisperpush.service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.UntrustedIdentityException;
@@ -38,13 +44,18 @@ import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.push.TextSecureAddress;
 import org.whispersystems.whisperpush.R;
 import org.whispersystems.whisperpush.WhisperPush;
+import org.whispersystems.whisperpush.api.BatchMessagingBridge;
+import org.whispersystems.whisperpush.api.DeliveryReceipt;
+import org.whispersystems.whisperpush.api.IncomingTextMessage;
 import org.whispersystems.whisperpush.api.MessageGroup;
 import org.whispersystems.whisperpush.api.MessagingBridge;
+import org.whispersystems.whisperpush.api.StreamingMessagingBridge;
 import org.whispersystems.whisperpush.attachments.AttachmentManager;
 import org.whispersystems.whisperpush.contacts.Contact;
 import org.whispersystems.whisperpush.contacts.ContactsFactory;
 import org.whispersystems.whisperpush.crypto.IdentityMismatchException;
 import org.whispersystems.whisperpush.database.DatabaseFactory;
+import org.whispersystems.whisperpush.database.EnvelopeJournalDatabase;
 import org.whispersystems.whisperpush.database.GroupDatabase;
 import org.whispersystems.whisperpush.database.WPAxolotlStore;
 import org.whispersystems.whisperpush.directory.Directory;
@@ -63,10 +74,28 @@ public class MessageReceiver {
 
     private static final String TAG = MessageReceiver.class.getSimpleName();
 
+    private static final int DECRYPT_PARALLELISM =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final int MAX_JOURNAL_ATTEMPTS = 3;
+
     private static volatile MessageReceiver sInstance;
 
     private final Context context;
     private final WhisperPush whisperPush;
+    // single threaded, so envelopes of a sender sharded onto one are handled in order
+    private final ExecutorService[] decryptExecutors;
+    // held around every call into the messaging bridge and every group database change:
+    // only decryption runs in parallel, the bridge still sees one caller at a time
+    private final Object bridgeLock = new Object();
+    private final EnvelopeDeduplicator deduplicator;
+    private final EnvelopeJournalDatabase journal;
+    // the only consumer of the journal, so no entry is ever handled twice at once
+    private final ExecutorService journalExecutor = Executors.newSingleThreadExecutor();
+    private final Object journalLock = new Object();
+    private Future<?> pendingDrain;        // guarded by journalLock
+    private boolean fullDrainRequested;    // guarded by journalLock
+    private long lastJournalId;            // journal thread only
     private volatile TextSecureMessageReceiver mTextSecureReceiver;
 
     public static MessageReceiver getInstance(Context context) {
@@ -83,6 +112,12 @@ public class MessageReceiver {
     private MessageReceiver(Context appContext) {
         this.context = appContext;
         this.whisperPush = WhisperPush.getInstance(appContext);
+        this.deduplicator = new EnvelopeDeduplicator(appContext);
+        this.journal = DatabaseFactory.getEnvelopeJournalDatabase(appContext);
+        this.decryptExecutors = new ExecutorService[DECRYPT_PARALLELISM];
+        for (int i = 0; i < decryptExecutors.length; i++) {
+            decryptExecutors[i] = Executors.newSingleThreadExecutor();
+        }
     }
 
     private Directory getContactDirectory() {
@@ -103,10 +138,14 @@ public class MessageReceiver {
     public void handleNotification() {
         List<TextSecureEnvelope> messages;
         try {
-            messages = getTextSecureReceiver().retrieveMessages();
-            for(TextSecureEnvelope message : messages) {
-                handleEnvelope(message, true);
-            }
+            // every envelope is journaled before the library acknowledges it to the server
+            messages = getTextSecureReceiver().retrieveMessages(new TextSecureMessageReceiver.MessageReceivedCallback() {
+                @Override
+                public void onMessage(TextSecureEnvelope envelope) {
+                    journal.append(envelope);
+                }
+            });
+            logLatency(messages, "fetch");
         } catch (IOException e) {
             Log.w(TAG, e);
             MessageNotifier.notifyProblem(context,
@@ -114,9 +153,262 @@ public class MessageReceiver {
                 // FIXME: probably a network error, and not badly formatted message?
                 context.getString(R.string.GcmReceiver_received_badly_formatted_push_message));
         }
+        // also whatever failed or was cut short before; waited for, as the caller holds a wake lock
+        waitUninterruptibly(requestDrain(true));
+    }
+
+    /**
+     * Journals an envelope read from the message pipe. Called before the pipe acknowledges
+     * it to the server, so it's not lost if the process dies before it has been handled.
+     */
+    void journalPipeEnvelope(TextSecureEnvelope envelope) {
+        journal.append(envelope);
+    }
+
+    /**
+     * Handles an envelope read from the message pipe, after {@link #journalPipeEnvelope}.
+     * Returns right away; the envelope is handled on the journal thread, together with
+     * whatever else arrives meanwhile.
+     */
+    void handlePipeEnvelope(TextSecureEnvelope envelope) {
+        logLatency(Collections.singletonList(envelope), "pipe");
+        requestDrain(false);
+    }
+
+    /**
+     * Makes the journal thread handle the entries appended since its last run, or all
+     * entries if {@code full}, including those kept after a failure.
+     *
+     * @return completes once everything journaled before this call has been handled
+     */
+    private Future<?> requestDrain(boolean full) {
+        synchronized (journalLock) {
+            fullDrainRequested |= full;
+            if (pendingDrain == null) {
+                pendingDrain = journalExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean full;
+                        synchronized (journalLock) {
+                            // from here on, appends need another run
+                            pendingDrain       = null;
+                            full               = fullDrainRequested;
+                            fullDrainRequested = false;
+                        }
+                        drainJournal(full);
+                    }
+                });
+            }
+            return pendingDrain;
+        }
+    }
+
+    private void drainJournal(boolean full) {
+        List<EnvelopeJournalDatabase.Entry> entries = journal.getEntries(full ? 0 : lastJournalId);
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        List<TextSecureEnvelope> envelopes = new ArrayList<>(entries.size());
+        for (EnvelopeJournalDatabase.Entry entry : entries) {
+            envelopes.add(entry.getEnvelope());
+            lastJournalId = Math.max(lastJournalId, entry.getId());
+        }
+
+        handleEnvelopes(envelopes, entries);
+    }
+
+    private static void waitUninterruptibly(Future<?> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to handle journal", e.getCause());
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles envelopes that were held back until their sender's new identity was approved.
+     * The deduplicator recorded them when they were first received, so they aren't checked
+     * against it again.
+     */
+    public void handleApprovedEnvelopes(List<TextSecureEnvelope> envelopes) {
+        handleEnvelopes(envelopes, null);
+    }
+
+    /**
+     * Handles envelopes from different senders in parallel. All envelopes of one sender
+     * go to the same thread, in order, since each one is decrypted with the ratchet state
+     * the one before left behind. Returns once every envelope has been handled.
+     *
+     * If the bridge is a {@link BatchMessagingBridge}, the text messages of the whole
+     * batch are stored with one call at the end; delivery receipts always are.
+     *
+     * @param journalEntries if not null, the journal entries of {@code envelopes}. An entry
+     *                       is deleted once its contents have been stored, and kept for a
+     *                       retry if handling it failed. Only the journal thread passes
+     *                       these, and only it checks envelopes against the deduplicator:
+     *                       the filter is saved once the batch has been stored, so it never
+     *                       holds an envelope that a crash could still lose.
+     */
+    private void handleEnvelopes(List<TextSecureEnvelope> envelopes,
+                                 List<EnvelopeJournalDatabase.Entry> journalEntries) {
+        final MessagingBridge messagingBridge = whisperPush.getMessagingBridge();
+        final List<IncomingTextMessage> textBatch = messagingBridge instanceof BatchMessagingBridge
+                ? Collections.synchronizedList(new ArrayList<IncomingTextMessage>(envelopes.size()))
+                : null;
+        final List<DeliveryReceipt> receiptBatch = Collections.synchronizedList(new ArrayList<DeliveryReceipt>());
+        // journal entries whose contents only get stored with one of the batches
+        final List<Long> textJournalIds    = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> receiptJournalIds = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> failedJournalIds  = Collections.synchronizedList(new ArrayList<Long>());
+
+        List<Future<?>> results = new ArrayList<>(envelopes.size());
+        for (int i = 0; i < envelopes.size(); i++) {
+            final TextSecureEnvelope            envelope = envelopes.get(i);
+            final EnvelopeJournalDatabase.Entry entry    = journalEntries != null ? journalEntries.get(i) : null;
+
+            results.add(getDecryptExecutor(envelope.getSource()).submit(new Runnable() {
+                @Override
+                public void run() {
+                    boolean handled = false;
+                    boolean batched = false;
+                    try {
+                        if (entry != null && entry.getPlaintext() != null) {
+                            // decrypted before, but not stored
+                            batched = storeTextMessage(messagingBridge, textBatch, envelope.getSource(),
+                                    entry.getPlaintext(), envelope.getTimestamp());
+                        } else if (entry != null && entry.getAttempts() == 0 &&
+                                   deduplicator.isDuplicate(envelope)) {
+                            Log.w(TAG, "Dropping duplicate envelope (" + envelope.getTimestamp() + ")");
+                        } else {
+                            batched = handleEnvelope(envelope, textBatch, receiptBatch,
+                                    entry != null ? entry.getId() : null);
+                        }
+                        handled = true;
+                    } finally {
+                        if (entry != null) {
+                            if (!handled) {
+                                failedJournalIds.add(entry.getId());
+                            } else if (!batched) {
+                                journal.delete(entry.getId());
+                            } else if (envelope.isReceipt()) {
+                                receiptJournalIds.add(entry.getId());
+                            } else {
+                                textJournalIds.add(entry.getId());
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+
+        // decrypted messages can't be decrypted again, so wait for all of them to be stored
+        boolean interrupted = false;
+        for (Future<?> result : results) {
+            while (true) {
+                try {
+                    result.get();
+                    break;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to handle envelope", e.getCause());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        // texts are journaled as plaintext and receipts aren't encrypted, so either batch can
+        // be retried, but only as long as it hasn't been stored
+        if (textBatch != null && !textBatch.isEmpty()) {
+            boolean stored = false;
+            try {
+                synchronized (bridgeLock) {
+                    ((BatchMessagingBridge) messagingBridge).storeIncomingTextMessages(textBatch);
+                }
+                stored = true;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to store text messages", e);
+                failedJournalIds.addAll(textJournalIds);
+            }
+            if (stored) {
+                deleteJournalEntries(textJournalIds);
+            }
+        }
+        if (!receiptBatch.isEmpty()) {
+            try {
+                DeliveryReceiptTracker.getInstance(context).onReceipts(receiptBatch);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to handle receipts", e);
+                failedJournalIds.addAll(receiptJournalIds);
+                receiptJournalIds.clear();
+            }
+            deleteJournalEntries(receiptJournalIds);
+        }
+        if (!failedJournalIds.isEmpty()) {
+            journal.recordFailures(failedJournalIds, MAX_JOURNAL_ATTEMPTS);
+        }
+        if (journalEntries != null) {
+            deduplicator.flush();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deleteJournalEntries(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            journal.delete(ids);
+        } catch (RuntimeException e) {
+            // replayed on the next full drain
+            Log.w(TAG, "Failed to delete " + ids.size() + " handled journal entries", e);
+        }
+    }
+
+    private static void logLatency(List<TextSecureEnvelope> envelopes, String via) {
+        if (envelopes.isEmpty()) {
+            return;
+        }
+        // relative to the sender's clock, so only meaningful on average
+        long now   = System.currentTimeMillis();
+        long total = 0;
+        for (TextSecureEnvelope envelope : envelopes) {
+            total += now - envelope.getTimestamp();
+        }
+        Log.d(TAG, "Received " + envelopes.size() + " envelopes via " + via +
+                   ", average latency " + (total / envelopes.size()) + "ms");
+    }
+
+    private ExecutorService getDecryptExecutor(String source) {
+        int shard = source == null ? 0 : (source.hashCode() & Integer.MAX_VALUE) % decryptExecutors.length;
+        return decryptExecutors[shard];
     }
 
     public void handleEnvelope(TextSecureEnvelope envelope, boolean sendExplicitReceipt) {
+        handleEnvelope(envelope, null, null, null);
+    }
+
+    /**
+     * @param receiptBatch if not null, receipts are added to it instead of being handled
+     * @param journalId    if not null, the journal entry decrypted text is recorded in
+     * @return true if the envelope's contents went into one of the batches
+     */
+    private boolean handleEnvelope(TextSecureEnvelope envelope, List<IncomingTextMessage> textBatch,
+                                   List<DeliveryReceipt> receiptBatch, Long journalId) {
         String source = envelope.getSource();
         boolean isActiveNumber = whisperPush.isRecipientSupportsSecureMessaging(source, false);
         if (!isActiveNumber) {
@@ -125,76 +417,148 @@ public class MessageReceiver {
             getContactDirectory().setNumber(contactTokenDetails, true);
         }
 
-        if (envelope.isReceipt()) handleReceipt(envelope);
-        else handleMessage(envelope);
+        if (envelope.isReceipt()) return handleReceipt(envelope, receiptBatch);
+        else return handleMessage(envelope, textBatch, journalId);
     }
 
-    private void handleReceipt(TextSecureEnvelope envelope) {
-        Log.w(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
-        // FIXME: don't know what to do with receipt
-        //DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCount(envelope.getSource(),
-        //                                                                         envelope.getTimestamp());
+    private boolean handleReceipt(TextSecureEnvelope envelope, List<DeliveryReceipt> receiptBatch) {
+        Log.d(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
+        DeliveryReceipt receipt = new DeliveryReceipt(envelope.getSource(), envelope.getTimestamp());
+        if (receiptBatch != null) {
+            receiptBatch.add(receipt);
+            return true;
+        }
+        DeliveryReceiptTracker.getInstance(context).onReceipts(Collections.singletonList(receipt));
+        return false;
     }
 
     public void handleMessage(TextSecureEnvelope message) {
+        handleMessage(message, null, null);
+    }
+
+    /**
+     * @param textBatch if not null, text messages are added to it instead of being stored
+     * @param journalId if not null, the journal entry a text message's plaintext is recorded in,
+     *                  since the ratchet has moved on and it can't be decrypted again
+     * @return true if the message went into {@code textBatch}
+     */
+    private boolean handleMessage(TextSecureEnvelope message, List<IncomingTextMessage> textBatch,
+                                  Long journalId) {
         if (message == null)
-            return;
+            return false;
 
         String source = message.getSource();
 
         if (isNumberBlackListed(source)) {
             MessageNotifier.notifyBlacklisted(context, source);
-            return;
+            return false;
         }
 
+        TextSecureDataMessage content;
         try {
-            TextSecureDataMessage content = getPlaintext(message);
+            content = getPlaintext(message);
+        } catch (IdentityMismatchException e) {
+            Log.w(TAG, e);
+            DatabaseFactory.getPendingApprovalDatabase(context).insert(message);
+            MessageNotifier.updateNotifications(context);
+            return false;
+        } catch (InvalidMessageException e) {
+            Log.w(TAG, e);
+            notifyBadlyEncrypted(source);
+            return false;
+        }
+
+        // from here on a failure can't be retried from the envelope, only from the plaintext
+        boolean replayable = journalId != null && !content.isEndSession() &&
+                             !content.getGroupInfo().isPresent() && !content.getAttachments().isPresent();
+        if (replayable) {
             Optional<String> body = content.getBody();
-            String textBody = body.isPresent() ? body.get() : "";
+            journal.setPlaintext(journalId, body.isPresent() ? body.get() : "");
+        }
 
-            if (content.isEndSession()) {
-                Log.i(TAG, "Secure session reset.");
-                WPAxolotlStore axolotlStore = WPAxolotlStore.getInstance(context);
-                axolotlStore.deleteAllSessions(source);
-                setActiveSession(source, false);
-            } else {
-                if (!getContactDirectory().hasActiveSession(source)) {
-                    Log.d(TAG, "New session detected for " + source);
-                    setActiveSession(source, true);
-                    MessageNotifier.notifyNewSessionIncoming(context, message);
-                }
-                updateDirectoryIfNecessary(message);
+        try {
+            return storeMessage(message, content, textBatch);
+        } catch (InvalidMessageException e) {
+            Log.w(TAG, e);
+            notifyBadlyEncrypted(source);
+            return false;
+        } catch (RuntimeException e) {
+            if (replayable) {
+                throw e;
+            }
+            Log.e(TAG, "Dropping decrypted message (" + message.getTimestamp() + "), storing it failed", e);
+            return false;
+        }
+    }
 
-                MessagingBridge messagingBridge = whisperPush.getMessagingBridge();
+    /**
+     * @return true if the message went into {@code textBatch}
+     */
+    private boolean storeMessage(TextSecureEnvelope message, TextSecureDataMessage content,
+                                 List<IncomingTextMessage> textBatch)
+            throws InvalidMessageException {
+        String source = message.getSource();
+        Optional<String> body = content.getBody();
+        String textBody = body.isPresent() ? body.get() : "";
+
+        if (content.isEndSession()) {
+            Log.i(TAG, "Secure session reset.");
+            WPAxolotlStore axolotlStore = WPAxolotlStore.getInstance(context);
+            axolotlStore.deleteAllSessions(source);
+            setActiveSession(source, false);
+            return false;
+        }
 
-                Optional<TextSecureGroup> textSecureGroupOptional = content.getGroupInfo();
-                long timestamp = message.getTimestamp();
+        if (!getContactDirectory().hasActiveSession(source)) {
+            Log.d(TAG, "New session detected for " + source);
+            setActiveSession(source, true);
+            MessageNotifier.notifyNewSessionIncoming(context, message);
+        }
+        updateDirectoryIfNecessary(message);
 
-                Optional<List<TextSecureAttachment>> attach = content.getAttachments();
+        MessagingBridge messagingBridge = whisperPush.getMessagingBridge();
 
-                if (textSecureGroupOptional.isPresent()) {
-                    handleGroupMessage(textSecureGroupOptional, messagingBridge,
-                            source, attach, textBody, timestamp);
-                } else if (attach.isPresent()) {
-                    handleMultimediaMessage(messagingBridge, source, attach, textBody, timestamp);
-                } else {
-                    messagingBridge.storeIncomingTextMessage(source, textBody, timestamp, false);
-                }
+        Optional<TextSecureGroup> textSecureGroupOptional = content.getGroupInfo();
+        long timestamp = message.getTimestamp();
 
-                if (StatsUtils.isStatsActive(context)) {
-                    WhisperPreferences.setWasActive(context, true);
-                }
-            }
-        } catch (IdentityMismatchException e) {
-            Log.w(TAG, e);
-            DatabaseFactory.getPendingApprovalDatabase(context).insert(message);
-            MessageNotifier.updateNotifications(context);
-        } catch (InvalidMessageException e) {
-            Log.w(TAG, e);
-            Contact contact = ContactsFactory.getContactFromNumber(context, source, false);
-            MessageNotifier.notifyProblem(context, contact,
-                    context.getString(R.string.MessageReceiver_received_badly_encrypted_message));
+        Optional<List<TextSecureAttachment>> attach = content.getAttachments();
+
+        boolean batched = false;
+        if (textSecureGroupOptional.isPresent()) {
+            handleGroupMessage(textSecureGroupOptional, messagingBridge,
+                    source, attach, textBody, timestamp);
+        } else if (attach.isPresent()) {
+            handleMultimediaMessage(messagingBridge, source, attach, textBody, timestamp);
+        } else {
+            batched = storeTextMessage(messagingBridge, textBatch, source, textBody, timestamp);
+        }
+
+        if (StatsUtils.isStatsActive(context)) {
+            WhisperPreferences.setWasActive(context, true);
         }
+        return batched;
+    }
+
+    private void notifyBadlyEncrypted(String source) {
+        Contact contact = ContactsFactory.getContactFromNumber(context, source, false);
+        MessageNotifier.notifyProblem(context, contact,
+                context.getString(R.string.MessageReceiver_received_badly_encrypted_message));
+    }
+
+    /**
+     * @return true if the message went into {@code textBatch}
+     */
+    private boolean storeTextMessage(MessagingBridge messagingBridge,
+                                     List<IncomingTextMessage> textBatch,
+                                     String source, String body, long timestamp) {
+        if (textBatch != null) {
+            textBatch.add(new IncomingTextMessage(source, body, timestamp, false));
+            return true;
+        }
+        synchronized (bridgeLock) {
+            messagingBridge.storeIncomingTextMessage(source, body, timestamp, false);
+        }
+        return false;
     }
 
     private void handleGroupMessage(Optional<TextSecureGroup> textSecureGroupOptional,
@@ -214,21 +578,25 @@ public class MessageReceiver {
             }
             members.remove(WhisperPush.getInstance(context).getLocalNumber());
             members.add(source);
-            groupDatabase.createOrUpdate(new MessageGroup(
-                    groupId,
-                    messagingBridge.getThreadId(members)
-            ));
+            synchronized (bridgeLock) {
+                groupDatabase.createOrUpdate(new MessageGroup(
+                        groupId,
+                        messagingBridge.getThreadId(members)
+                ));
+            }
         } else if (type == TextSecureGroup.Type.DELIVER) {
             try {
-                long threadId = groupDatabase.getThreadId(groupId);
                 List<Pair<byte[], Uri>> attachments;
                 if (attach.isPresent()) {
                     attachments = retrieveAttachments(attach.get(), timestamp);
                 } else {
                     attachments = Collections.EMPTY_LIST;
                 }
-                messagingBridge.storeIncomingGroupMessage(
-                        source, textBody, attachments, timestamp, threadId);
+                synchronized (bridgeLock) {
+                    long threadId = groupDatabase.getThreadId(groupId);
+                    messagingBridge.storeIncomingGroupMessage(
+                            source, textBody, attachments, timestamp, threadId);
+                }
             } catch (IOException e) {
                 Log.w(TAG, e);
                 Contact contact = ContactsFactory.getContactFromNumber(context, source, false);
@@ -236,14 +604,16 @@ public class MessageReceiver {
                         context.getString(R.string.MessageReceiver_unable_to_retrieve_encrypted_attachment_for_incoming_message));
             }
         } else if (type == TextSecureGroup.Type.QUIT) {
-            long threadId = groupDatabase.getThreadId(groupId);
-            Set<String> recipients = messagingBridge.getRecipientsByThread(threadId);
-            recipients.remove(source);
-            long newThreadId = messagingBridge.getThreadId(recipients);
-            if (newThreadId == -1) {
-                groupDatabase.remove(groupId);
-            } else if (newThreadId != threadId) {
-                groupDatabase.createOrUpdate(new MessageGroup(groupId, newThreadId));
+            synchronized (bridgeLock) {
+                long threadId = groupDatabase.getThreadId(groupId);
+                Set<String> recipients = messagingBridge.getRecipientsByThread(threadId);
+                recipients.remove(source);
+                long newThreadId = messagingBridge.getThreadId(recipients);
+                if (newThreadId == -1) {
+                    groupDatabase.remove(groupId);
+                } else if (newThreadId != threadId) {
+                    groupDatabase.createOrUpdate(new MessageGroup(groupId, newThreadId));
+                }
             }
         }
     }
@@ -253,7 +623,9 @@ public class MessageReceiver {
                                          String textBody, long timestamp) {
         try {
             List<Pair<byte[], Uri>> attachments = retrieveAttachments(attach.get(), timestamp);
-            messagingBridge.storeIncomingMultimediaMessage(source, textBody, attachments, timestamp);
+            synchronized (bridgeLock) {
+                messagingBridge.storeIncomingMultimediaMessage(source, textBody, attachments, timestamp);
+            }
         } catch (Throwable e) {
             Log.w(TAG, e);
             Contact contact = ContactsFactory.getContactFromNumber(context, source, false);
@@ -283,42 +655,103 @@ public class MessageReceiver {
         }
     }
 
+    /**
+     * Downloads all attachments in parallel, then persists them in their original order.
+     * Returns once every download has finished or failed, so the message is only stored
+     * afterwards.
+     */
     private List<Pair<byte[], Uri>> retrieveAttachments(List<TextSecureAttachment> list, long timestamp)
             throws IOException, InvalidMessageException
     {
         AttachmentManager attachmentManager = AttachmentManager.getInstance(context);
+        MessagingBridge messagingBridge = whisperPush.getMessagingBridge();
         List<Pair<byte[], Uri>> results = new LinkedList<>();
-        TextSecureMessageReceiver receiver = getTextSecureReceiver();
+
+        List<Future<InputStream>> downloads = new ArrayList<>(list.size());
         for (TextSecureAttachment attachment : list) {
-            InputStream stream = null;
-            byte[] attachmentBytes;
+            if (attachment instanceof TextSecureAttachmentPointer) {
+                downloads.add(attachmentManager.storeAsync((TextSecureAttachmentPointer) attachment));
+            } else {
+                downloads.add(null);
+            }
+        }
 
-            try {
-                if (attachment instanceof TextSecureAttachmentPointer) {
-                    stream = attachmentManager.store((TextSecureAttachmentPointer) attachment, receiver);
-                } else {
-                    stream = attachment.asStream().getInputStream();
+        int next = 0;
+        try {
+            for (; next < list.size(); next++) {
+                TextSecureAttachment attachment = list.get(next);
+                Future<InputStream> download = downloads.get(next);
+                InputStream stream = null;
+                byte[] contentType = Util.toIsoBytes(attachment.getContentType());
+                Uri uri;
+
+                try {
+                    if (download != null) {
+                        stream = getDownload(download);
+                    } else {
+                        stream = attachment.asStream().getInputStream();
+                    }
+                    // use sentAt timestamp as dummyId
+                    if (messagingBridge instanceof StreamingMessagingBridge) {
+                        synchronized (bridgeLock) {
+                            uri = ((StreamingMessagingBridge) messagingBridge).persistPart(contentType, stream, timestamp);
+                        }
+                    } else {
+                        byte[] data = Util.readBytes(stream);
+                        synchronized (bridgeLock) {
+                            uri = messagingBridge.persistPart(contentType, data, timestamp);
+                        }
+                    }
+                } finally {
+                    if (stream != null) {
+                        stream.close();
+                    }
                 }
-                attachmentBytes = Util.readBytes(stream);
-            } finally {
-                if (stream != null) {
-                    stream.close();
+
+                if (uri != null) {
+                    results.add(new Pair<>(contentType, uri));
+                } else {
+                    Log.w(TAG, "Cannot persist attachment");
                 }
             }
-
-            byte[] contentType = Util.toIsoBytes(attachment.getContentType());
-            // use sentAt timestamp as dummyId
-            Uri uri = whisperPush.getMessagingBridge().persistPart(contentType, attachmentBytes, timestamp);
-            if (uri != null) {
-                results.add(new Pair<>(contentType, uri));
-            } else {
-                Log.w(TAG, "Cannot persist attachment");
+        } finally {
+            // after a failure, let the remaining downloads finish and drop their files
+            for (next++; next < downloads.size(); next++) {
+                discardDownload(downloads.get(next));
             }
         }
 
         return results;
     }
 
+    private static InputStream getDownload(Future<InputStream> download)
+            throws IOException, InvalidMessageException
+    {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading attachment");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)             throw (IOException) cause;
+            if (cause instanceof InvalidMessageException) throw (InvalidMessageException) cause;
+            if (cause instanceof RuntimeException)        throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static void discardDownload(Future<InputStream> download) {
+        if (download == null) {
+            return;
+        }
+        try {
+            getDownload(download).close();
+        } catch (IOException | InvalidMessageException | RuntimeException e) {
+            Log.w(TAG, e);
+        }
+    }
+
     private void updateDirectoryIfNecessary(TextSecureEnvelope message) {
         String source = message.getSource();
         if (!isActiveNumber(source)) {
@@ -340,8 +773,10 @@ public class MessageReceiver {
     }
 
     private boolean isNumberBlackListed(String number) {
-        return whisperPush.getMessagingBridge()
-                .isAddressBlacklisted(number);
+        synchronized (bridgeLock) {
+            return whisperPush.getMessagingBridge()
+                    .isAddressBlacklisted(number);
+        }
     }
 
     public synchronized void reset() {
@@ -29,7 +29,6 @@ import org.whispersystems.libaxolotl.state.SignedPreKeyRecord;
 import org.whispersystems.libaxolotl.util.KeyHelper;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.TextSecureAccountManager;
-import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.whisperpush.R;
 import org.whispersystems.whisperpush.WhisperPush;
 import org.whispersystems.whisperpush.crypto.IdentityKeyUtil;
@@ -38,6 +37,7 @@ import org.whispersystems.whisperpush.crypto.MasterSecretUtil;
 import org.whispersystems.whisperpush.crypto.MessagePeer;
 import org.whispersystems.whisperpush.crypto.PreKeyUtil;
 import org.whispersystems.whisperpush.database.DatabaseFactory;
+import org.whispersystems.whisperpush.directory.ContactDiscovery;
 import org.whispersystems.whisperpush.directory.Directory;
 import org.whispersystems.whisperpush.gcm.GcmHelper;
 import org.whispersystems.whisperpush.sms.IncomingSmsListener;
@@ -326,17 +326,13 @@ public class RegistrationService extends Service {
         DatabaseFactory.getIdentityDatabase(this).saveIdentity(masterSecret,
                 new MessagePeer(this, number), identityKeyPair.getPublicKey());
 
-        Set<String>               eligibleContactNumber = Directory.getInstance(this).getPushEligibleContactNumbers(number);
-        List<ContactTokenDetails> activeTokens          = manager.getContacts(eligibleContactNumber);
+        Directory   directory             = Directory.getInstance(this);
+        Set<String> eligibleContactNumber = directory.getPushEligibleContactNumbers(number);
 
-        if (activeTokens != null) {
-            for (ContactTokenDetails activeToken : activeTokens) {
-                eligibleContactNumber.remove(activeToken.getNumber());
-            }
-            Directory.getInstance(this).setNumbers(activeTokens, eligibleContactNumber);
-        }
+        new ContactDiscovery(this, directory).discover(eligibleContactNumber);
 
         DirectoryRefreshListener.schedule(this);
+        ContactsChangeObserver.register(this);
     }
 
     private synchronized String waitForChallenge() throws AccountVerificationTimeoutException {
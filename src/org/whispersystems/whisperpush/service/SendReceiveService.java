@@ -30,6 +30,8 @@ import org.whispersystems.whisperpush.database.PendingApprovalDatabase;
 import org.whispersystems.whisperpush.sms.OutgoingSmsQueue;
 import org.whispersystems.whisperpush.api.OutgoingMessage;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -50,6 +52,8 @@ public class SendReceiveService extends Service {
     public static final String SEND_SMS         = "org.whispersystems.SendReceiveService.SEND_SMS";
 
     public  static final String DESTINATION  = "destAddr";
+    public  static final String MESSAGE_ID   = "message_id";
+    public  static final String MESSAGE_IDS  = "message_ids";
 
     private final ExecutorService  executor    = Executors.newCachedThreadPool();
     private final OutgoingSmsQueue outgoingQueue = OutgoingSmsQueue.getInstance();
@@ -91,13 +95,11 @@ public class SendReceiveService extends Service {
         if (RCV_NOTIFICATION.equals(action)) {
             messageReceiver.handleNotification();
         } else if (RCV_PENDING.equals(action)) {
-            long messageId = intent.getLongExtra("message_id", 0);
-            PendingApprovalDatabase database = DatabaseFactory.getPendingApprovalDatabase(this);
-            TextSecureEnvelope message = database.get(messageId);
-            if (message != null) {
-                database.delete(messageId);
-                messageReceiver.handleEnvelope(message, true);
+            long[] messageIds = intent.getLongArrayExtra(MESSAGE_IDS);
+            if (messageIds == null) {
+                messageIds = new long[] {intent.getLongExtra(MESSAGE_ID, 0)};
             }
+            handlePending(messageIds);
         } else if (SEND_SMS.equals(action)) {
             OutgoingMessage message = outgoingQueue.get();
             if (message != null) {
@@ -106,6 +108,24 @@ public class SendReceiveService extends Service {
         }
     }
 
+    /**
+     * Replays messages held back for identity approval, in the order they were received.
+     */
+    private void handlePending(long[] messageIds) {
+        List<Long> ids = new ArrayList<>(messageIds.length);
+        for (long messageId : messageIds) {
+            ids.add(messageId);
+        }
+
+        PendingApprovalDatabase database = DatabaseFactory.getPendingApprovalDatabase(this);
+        List<TextSecureEnvelope> messages = database.get(ids);
+        if (!messages.isEmpty()) {
+            database.delete(ids);
+            messageReceiver.handleApprovedEnvelopes(messages);
+            MessageNotifier.updateNotifications(this);
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -131,10 +131,15 @@ public class WhisperPushMessageSender {
             String e164number = whisperPush.formatNumber(destination);
             TextSecureAddress address = new TextSecureAddress(e164number);
             TextSecureMessageSender sender = WhisperServiceFactory.createMessageSender(context);
+            // the recipient's delivery receipt refers to the message by this timestamp
+            long timestamp = message.getTimestamp() != 0 ? message.getTimestamp() : System.currentTimeMillis();
             TextSecureDataMessage body = TextSecureDataMessage.newBuilder()
                     .withBody(message.getMessageBody())
+                    .withTimestamp(timestamp)
                     .build();
             sender.sendMessage(address, body);
+            DeliveryReceiptTracker.getInstance(context)
+                    .track(e164number, timestamp, message.getDeliveryIntents());
 
             notifySendComplete(message);
             completeSendOperation(message);
@@ -156,7 +161,6 @@ public class WhisperPushMessageSender {
             IOException, InvalidNumberException {
         formatRecipients(recipients);
 
-        TextSecureMessageSender messageSender = WhisperServiceFactory.createMessageSender(context);
         List<TextSecureAttachment> convertedAttachments = convertAttachments(attachments);
 
         TextSecureDataMessage.Builder builder = TextSecureDataMessage.newBuilder()
@@ -198,6 +202,12 @@ public class WhisperPushMessageSender {
             }
         }
 
+        WPAxolotlStore axolotlStore = WPAxolotlStore.getInstance(context);
+        if (isGroupMessage) {
+            axolotlStore = axolotlStore.withPrefetchedIdentities(recipients);
+        }
+        TextSecureMessageSender messageSender = WhisperServiceFactory.createMessageSender(context, axolotlStore);
+
         try {
             List<TextSecureAddress> convertedRecipients = convertRecipients(recipients);
             messageSender.sendMessage(convertedRecipients, builder.build());
@@ -267,6 +277,7 @@ public class WhisperPushMessageSender {
     private List<TextSecureAddress> convertRecipients(List<String> recipients)
             throws InvalidNumberException, IOException {
         List<TextSecureAddress> secureRecipients = new ArrayList<>(recipients.size());
+        whisperPush.discoverRecipients(recipients);
         for (String recipient : recipients) {
             boolean recipientSupportsSecureMessaging = whisperPush.isRecipientSupportsSecureMessaging(recipient, true);
             if (!recipientSupportsSecureMessaging) {
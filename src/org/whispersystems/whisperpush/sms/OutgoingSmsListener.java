@@ -22,12 +22,12 @@ import android.content.Intent;
 import android.util.Log;
 
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
-import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 import org.whispersystems.whisperpush.api.OutgoingMessage;
 import org.whispersystems.whisperpush.directory.Directory;
 import org.whispersystems.whisperpush.directory.NotInDirectoryException;
 import org.whispersystems.whisperpush.service.DirectoryRefreshListener;
 import org.whispersystems.whisperpush.service.SendReceiveService;
+import org.whispersystems.whisperpush.util.PhoneNumberCache;
 import org.whispersystems.whisperpush.util.WhisperPreferences;
 
 /**
@@ -61,7 +61,7 @@ public class OutgoingSmsListener extends BroadcastReceiver {
             return false;
 
         try {
-            String number = PhoneNumberFormatter.formatNumber(destination, localNumber);
+            String number = PhoneNumberCache.getInstance().formatNumber(destination, localNumber);
             return Directory.getInstance(context).isActiveNumber(number);
         } catch (NotInDirectoryException e) {
             return true;
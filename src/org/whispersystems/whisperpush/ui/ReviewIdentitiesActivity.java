@@ -92,17 +92,25 @@ public class ReviewIdentitiesActivity extends ListActivity
         private final MasterSecret   masterSecret;
         private final LayoutInflater inflater;
 
+        private IdentityDatabase.Reader reader;
+
         public IdentitiesListAdapter(Context context, Cursor cursor, MasterSecret masterSecret) {
-            super(context, cursor);
+            // no auto-requery: the loader delivers a fresh cursor, and with it a fresh reader
+            super(context, cursor, 0);
             this.masterSecret = masterSecret;
             this.inflater     = LayoutInflater.from(context);
         }
 
         @Override
-        public void bindView(View view, Context context, Cursor cursor) {
-            IdentityDatabase.Reader reader = DatabaseFactory.getIdentityDatabase(context)
+        public Cursor swapCursor(Cursor cursor) {
+            // one reader per cursor, so numbers get resolved in bulk
+            reader = cursor == null ? null : DatabaseFactory.getIdentityDatabase(mContext)
                     .readerFor(masterSecret, cursor);
+            return super.swapCursor(cursor);
+        }
 
+        @Override
+        public void bindView(View view, Context context, Cursor cursor) {
             ((IdentityKeyItemView)view).set(reader.getCurrent());
         }
 
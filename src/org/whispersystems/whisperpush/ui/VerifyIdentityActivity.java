@@ -45,6 +45,8 @@ import org.whispersystems.whisperpush.database.PendingApprovalDatabase;
 import org.whispersystems.whisperpush.service.MessageNotifier;
 import org.whispersystems.whisperpush.service.SendReceiveService;
 
+import java.util.Arrays;
+
 public class VerifyIdentityActivity extends KeyScanningActivity {
 
     private Contact contact;
@@ -201,25 +203,36 @@ public class VerifyIdentityActivity extends KeyScanningActivity {
             PendingApprovalDatabase.Reader reader = database.readerFor(cursor);
 
             TextSecureEnvelope message;
+            long[]             messageIds = new long[cursor.getCount()];
+            int                count      = 0;
 
-            while ((message = reader.getNext()) != null) {
-                try {
-                    PreKeyWhisperMessage keyExchange = new PreKeyWhisperMessage(message.getLegacyMessage());
+            try {
+                while ((message = reader.getNext()) != null) {
+                    try {
+                        PreKeyWhisperMessage keyExchange = new PreKeyWhisperMessage(message.getLegacyMessage());
 
-                    if (keyExchange.getIdentityKey().equals(identityKey)) {
-                        Intent intent = new Intent(context, SendReceiveService.class);
-                        intent.setAction(SendReceiveService.RCV_PENDING);
-                        intent.putExtra("message_id", reader.getCurrentId());
-                        context.startService(intent);
+                        if (keyExchange.getIdentityKey().equals(identityKey)) {
+                            messageIds[count++] = reader.getCurrentId();
+                        }
+                    } catch (InvalidVersionException e) {
+                        Log.w("VerifyIdentityActivity", e);
+                    } catch (InvalidMessageException e) {
+                        Log.w("VerifyIdentityActivity", e);
                     }
-                } catch (InvalidVersionException e) {
-                    Log.w("VerifyIdentityActivity", e);
-                } catch (InvalidMessageException e) {
-                    Log.w("VerifyIdentityActivity", e);
                 }
+            } finally {
+                reader.close();
             }
 
-            MessageNotifier.updateNotifications(context);
+            if (count > 0) {
+                // replayed together, the service refreshes notifications once they're all handled
+                Intent intent = new Intent(context, SendReceiveService.class);
+                intent.setAction(SendReceiveService.RCV_PENDING);
+                intent.putExtra(SendReceiveService.MESSAGE_IDS, Arrays.copyOf(messageIds, count));
+                context.startService(intent);
+            } else {
+                MessageNotifier.updateNotifications(context);
+            }
             return null;
         }
 
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A size bounded cache which is safe to share between threads. Concurrent misses for
+ * the same key are coalesced, so the value is loaded only once and every caller gets
+ * the same result.
+ *
+ * Reads take no lock: entries live in a {@link ConcurrentHashMap} and only note when
+ * they were last used. Eviction is approximately LRU, like a clock: a put that takes
+ * the cache over its bound looks at the next {@link #EVICTION_SAMPLE} entries after
+ * where the previous eviction stopped and drops the least recently used of them. Only
+ * evictions are serialized, with each other.
+ */
+public class BoundedConcurrentCache<K, V> {
+
+    public interface Loader<K, V> {
+        V load(K key) throws Exception;
+    }
+
+    private static final int EVICTION_SAMPLE = 8;
+
+    private static class Entry<V> {
+        final    V    value;
+        volatile long lastUsed;
+
+        Entry(V value) {
+            this.value    = value;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private volatile int maxSize;
+
+    private final ConcurrentMap<K, Entry<V>>      values  = new ConcurrentHashMap<>();
+    private final AtomicInteger                   size    = new AtomicInteger();
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+
+    private final Object evictionLock = new Object();
+    private Iterator<Map.Entry<K, Entry<V>>> evictionHand; // guarded by evictionLock
+
+    public BoundedConcurrentCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    public V get(K key) {
+        Entry<V> entry = values.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsed = System.nanoTime();
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        if (values.put(key, new Entry<>(value)) == null &&
+            size.incrementAndGet() > maxSize)
+        {
+            evict();
+        }
+    }
+
+    public void remove(K key) {
+        if (values.remove(key) != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    public void clear() {
+        for (K key : values.keySet()) {
+            remove(key);
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the bound; shrinking evicts the surplus entries right away.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            while (size.get() > maxSize) {
+                Map.Entry<K, Entry<V>> oldest = null;
+
+                for (int i = 0; i < EVICTION_SAMPLE; i++) {
+                    if (evictionHand == null || !evictionHand.hasNext()) {
+                        evictionHand = values.entrySet().iterator();
+                        if (!evictionHand.hasNext()) {
+                            return;
+                        }
+                    }
+
+                    Map.Entry<K, Entry<V>> candidate = evictionHand.next();
+                    if (oldest == null || candidate.getValue().lastUsed < oldest.getValue().lastUsed) {
+                        oldest = candidate;
+                    }
+                }
+
+                if (values.remove(oldest.getKey(), oldest.getValue())) {
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cached value for {@code key}, loading it with {@code loader} on a miss.
+     * Only one loader runs per key at a time; other callers wait for its result.
+     *
+     * @throws ExecutionException wrapping whatever {@code loader} has thrown
+     */
+    public V get(final K key, final Loader<K, V> loader) throws ExecutionException {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+
+        FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                V loaded = loader.load(key);
+                if (loaded != null) {
+                    put(key, loaded);
+                }
+                return loaded;
+            }
+        });
+
+        FutureTask<V> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+
+        return getUninterruptibly(running);
+    }
+
+    private static <V> V getUninterruptibly(FutureTask<V> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
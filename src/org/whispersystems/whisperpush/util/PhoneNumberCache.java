@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2015 The CyanogenMod Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.whisperpush.util;
+
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
+import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the E.164 form of raw numbers, since parsing them with libphonenumber
+ * is comparatively expensive and the same numbers are formatted over and over.
+ * Entries are only valid for the local number they were formatted against; the
+ * whole cache is dropped when it changes.
+ *
+ * A directory sync formats every contact number once per pass, which an LRU cache
+ * smaller than the address book would miss on every time, so callers walking all
+ * contacts grow it with {@link #ensureCapacity(int)} first.
+ */
+public class PhoneNumberCache {
+
+    private static final int CACHE_SIZE     = 4096;
+    private static final int MAX_CACHE_SIZE = 32768;
+
+    // formatted numbers are never empty, so this marks numbers which failed to format
+    private static final String INVALID = "";
+
+    private static final PhoneNumberCache instance = new PhoneNumberCache();
+
+    public static PhoneNumberCache getInstance() {
+        return instance;
+    }
+
+    private final AtomicLong lookups   = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+    private final AtomicLong missNanos = new AtomicLong();
+
+    private volatile Generation generation;
+    private volatile int        capacity = CACHE_SIZE;
+
+    private PhoneNumberCache() {
+    }
+
+    public String formatNumber(String number, String localNumber) throws InvalidNumberException {
+        if (number == null || localNumber == null) {
+            return PhoneNumberFormatter.formatNumber(number, localNumber);
+        }
+
+        Generation current = generation;
+        if (current == null || !current.localNumber.equals(localNumber)) {
+            current    = new Generation(localNumber);
+            generation = current;
+        }
+
+        lookups.incrementAndGet();
+
+        String formatted;
+        try {
+            formatted = current.formatted.get(number, current);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AssertionError(e);
+        }
+
+        if (formatted.isEmpty()) {
+            throw new InvalidNumberException("Invalid number: " + number);
+        }
+
+        return formatted;
+    }
+
+    /**
+     * Makes room for at least {@code numbers} entries, up to a fixed maximum.
+     * The cache never shrinks again while the process lives.
+     */
+    public void ensureCapacity(int numbers) {
+        int wanted = Math.min(MAX_CACHE_SIZE, numbers + numbers / 4);
+        if (wanted <= capacity) {
+            return;
+        }
+
+        synchronized (this) {
+            if (wanted > capacity) {
+                capacity = wanted;
+                Generation current = generation;
+                if (current != null) {
+                    current.formatted.setMaxSize(wanted);
+                }
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return lookups.get() - misses.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Time spent actually formatting numbers on cache misses.
+     */
+    public long getMissNanos() {
+        return missNanos.get();
+    }
+
+    private class Generation implements BoundedConcurrentCache.Loader<String, String> {
+
+        final String                                 localNumber;
+        final BoundedConcurrentCache<String, String> formatted = new BoundedConcurrentCache<>(capacity);
+
+        Generation(String localNumber) {
+            this.localNumber = localNumber;
+        }
+
+        @Override
+        public String load(String number) {
+            long start = System.nanoTime();
+            try {
+                return PhoneNumberFormatter.formatNumber(number, localNumber);
+            } catch (InvalidNumberException e) {
+                return INVALID;
+            } finally {
+                misses.incrementAndGet();
+                missNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -6,8 +6,10 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.whispersystems.libaxolotl.IdentityKey;
@@ -151,6 +153,20 @@ public class Util {
 
     }
 
+    /**
+     * Splits {@code values} into consecutive lists of at most {@code size} elements.
+     */
+    public static <T> List<List<T>> partition(Collection<T> values, int size) {
+        List<T>       all    = new ArrayList<>(values);
+        List<List<T>> chunks = new ArrayList<>((all.size() + size - 1) / size);
+
+        for (int offset = 0; offset < all.size(); offset += size) {
+            chunks.add(all.subList(offset, Math.min(offset + size, all.size())));
+        }
+
+        return chunks;
+    }
+
     public static <T> Set<T> asSet(Collection<T> collection) {
         if (collection instanceof Set) {
             return (Set<T>) collection;
@@ -32,6 +32,7 @@ public class WhisperPreferences {
     private static final String PREF_VERIFYING              = "pref_verifying";
     private static final String PREF_REGISTRATION_COMPLETE  = "pref_registration_complete";
     private static final String PREF_LOCAL_NUMBER           = "pref_registered_number";
+    private static final String PREF_NORMALIZED_FOR_NUMBER  = "pref_normalized_for_number";
     private static final String PREF_PUSH_PASSWORD          = "pref_push_password";
     private static final String PREF_GCM_ID                 = "pref_gcm_id";
     private static final String PREF_GCM_REGISTRATION_TIME  = "pref_gcm_reg_time";
@@ -41,6 +42,13 @@ public class WhisperPreferences {
     private static final String PREF_MASTER_SECRET          = "pref_master_secret";
     private static final String PREF_SIGNALING_KEY          = "pref_signaling_key";
     private static final String PREF_DIRECTORY_REFRESH_TIME = "pref_directory_refresh";
+    private static final String PREF_DIRECTORY_SYNC_TIME    = "pref_directory_sync_time";
+    private static final String PREF_DIRECTORY_FULL_SYNC_TIME = "pref_directory_full_sync_time";
+    private static final String PREF_DIRECTORY_REFRESH_INTERVAL = "pref_directory_refresh_interval";
+    private static final String PREF_DIRECTORY_REFRESH_FAILURES = "pref_directory_refresh_failures";
+    private static final String PREF_DIRECTORY_REFRESH_DUE_TIME = "pref_directory_refresh_due";
+    private static final String PREF_DIRECTORY_SYNC_REPORT  = "pref_directory_sync_report";
+    private static final String PREF_MESSAGE_PIPE           = "pref_message_pipe";
     private static final String PREF_WAS_ACTIVE             = "pref_was_active";
     private static final String PREF_NEXT_STAT_TIME         = "pref_next_stat_time";
     private static final String PREF_INSTALL_ID             = "pref_install_id";
@@ -112,6 +120,57 @@ public class WhisperPreferences {
         setLongPreference(context, PREF_DIRECTORY_REFRESH_TIME, value);
     }
 
+    public static long getDirectorySyncTime(Context context) {
+        return getLongPreference(context, PREF_DIRECTORY_SYNC_TIME, 0);
+    }
+
+    public static void setDirectorySyncTime(Context context, long value) {
+        setLongPreference(context, PREF_DIRECTORY_SYNC_TIME, value);
+    }
+
+    public static long getDirectoryFullSyncTime(Context context) {
+        return getLongPreference(context, PREF_DIRECTORY_FULL_SYNC_TIME, 0);
+    }
+
+    public static void setDirectoryFullSyncTime(Context context, long value) {
+        setLongPreference(context, PREF_DIRECTORY_FULL_SYNC_TIME, value);
+    }
+
+    public static long getDirectoryRefreshInterval(Context context, long defaultValue) {
+        return getLongPreference(context, PREF_DIRECTORY_REFRESH_INTERVAL, defaultValue);
+    }
+
+    public static void setDirectoryRefreshInterval(Context context, long value) {
+        setLongPreference(context, PREF_DIRECTORY_REFRESH_INTERVAL, value);
+    }
+
+    public static int getDirectoryRefreshFailures(Context context) {
+        return getIntegerPreference(context, PREF_DIRECTORY_REFRESH_FAILURES, 0);
+    }
+
+    public static void setDirectoryRefreshFailures(Context context, int value) {
+        setIntegerPreference(context, PREF_DIRECTORY_REFRESH_FAILURES, value);
+    }
+
+    /**
+     * @return when the refresh currently being deferred first became due, or 0
+     */
+    public static long getDirectoryRefreshDueTime(Context context) {
+        return getLongPreference(context, PREF_DIRECTORY_REFRESH_DUE_TIME, 0);
+    }
+
+    public static void setDirectoryRefreshDueTime(Context context, long value) {
+        setLongPreference(context, PREF_DIRECTORY_REFRESH_DUE_TIME, value);
+    }
+
+    public static String getDirectorySyncReport(Context context) {
+        return getStringPreference(context, PREF_DIRECTORY_SYNC_REPORT, null);
+    }
+
+    public static void setDirectorySyncReport(Context context, String report) {
+        setStringPreference(context, PREF_DIRECTORY_SYNC_REPORT, report);
+    }
+
     public static void setMasterSecret(Context context, String value) {
         setStringPreference(context, PREF_MASTER_SECRET, value);
     }
@@ -160,6 +219,18 @@ public class WhisperPreferences {
         setStringPreference(context, PREF_LOCAL_NUMBER, localNumber);
     }
 
+    /**
+     * @return the local number the stored canonical addresses were normalized with,
+     *         "" for none, or null if that isn't known
+     */
+    public static String getNormalizedForNumber(Context context) {
+        return getStringPreference(context, PREF_NORMALIZED_FOR_NUMBER, null);
+    }
+
+    public static void setNormalizedForNumber(Context context, String localNumber) {
+        setStringPreference(context, PREF_NORMALIZED_FOR_NUMBER, localNumber);
+    }
+
     public static String getPushServerPassword(Context context) {
         return getStringPreference(context, PREF_PUSH_PASSWORD, null);
     }
@@ -196,6 +267,14 @@ public class WhisperPreferences {
         setLongPreference(context, PREF_GCM_REGISTRATION_TIME, timeSinceEpoch);
     }
 
+    public static boolean isMessagePipeEnabled(Context context) {
+        return getBooleanPreference(context, PREF_MESSAGE_PIPE, false);
+    }
+
+    public static void setMessagePipeEnabled(Context context, boolean enabled) {
+        setBooleanPreference(context, PREF_MESSAGE_PIPE, enabled);
+    }
+
     public static boolean getWasActive(Context context) {
         return getBooleanPreference(context, PREF_WAS_ACTIVE, false);
     }
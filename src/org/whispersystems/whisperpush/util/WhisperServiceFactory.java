@@ -1,5 +1,6 @@
 package org.whispersystems.whisperpush.util;
 
+import org.whispersystems.libaxolotl.state.AxolotlStore;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.TextSecureAccountManager;
 import org.whispersystems.textsecure.api.TextSecureMessageReceiver;
@@ -12,12 +13,16 @@ import android.content.Context;
 
 public class WhisperServiceFactory {
     public static TextSecureMessageSender createMessageSender(Context context) {
+        return createMessageSender(context, WPAxolotlStore.getInstance(context));
+    }
+
+    public static TextSecureMessageSender createMessageSender(Context context, AxolotlStore axolotlStore) {
         WhisperPreferences preferences = WhisperPreferences.getInstance(context);
         return new TextSecureMessageSender(Release.PUSH_URL,
                                            new WhisperPushTrustStore(context),
                                            preferences.getLocalNumber(),
                                            WhisperPreferences.getPushServerPassword(context),
-                                           WPAxolotlStore.getInstance(context),
+                                           axolotlStore,
                                            null,
                                            Optional.<EventListener>absent());
     }